@@ -0,0 +1,139 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Properties;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+// JMH refuses benchmark classes in the default package, and a named package can't refer to the server's classes.
+// The benchmarks therefore reach the server through the JDK functional interfaces handed out here, which keeps the
+// measured calls plain interface calls (reflection is only used once, to look these factories up).
+public class BenchmarkTargets {
+
+    private static final long MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+    public static ToIntFunction<byte[]> requestParser() {
+        HTTPRequestParser parser = new HTTPRequestParser(MAX_BODY_SIZE);
+        return rawRequest -> {
+            parser.reset();
+            try {
+                if (!parser.parse(rawRequest, 0, rawRequest.length)) {
+                    throw new IllegalStateException("Incomplete request");
+                }
+            } catch (BadRequestException e) {
+                throw new IllegalStateException(e);
+            }
+            return parser.getRequest().getHeaders().size();
+        };
+    }
+
+    // The whole read path of a new connection: stream, request buffer and parser
+    public static ToIntFunction<byte[]> requestReader() {
+        return rawRequest -> {
+            try {
+                HTTPRequest request = new HTTPRequestReader(new ByteArrayInputStream(rawRequest), MAX_BODY_SIZE).readRequest();
+                return request.getHeaders().size();
+            } catch (IOException | BadRequestException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    // Serializing the status line and headers into a connection's response buffer
+    public static IntSupplier responseHeaders() {
+        ResponseBuffer buffer = new ResponseBuffer();
+        return () -> {
+            buffer.reset();
+            newResponse(false).writeHeaders(buffer);
+            return buffer.size();
+        };
+    }
+
+    public static ToIntFunction<byte[]> responseSender(boolean chunked) {
+        ResponseBuffer buffer = new ResponseBuffer();
+        return body -> {
+            CountingChannel channel = new CountingChannel();
+            HTTPResponse response = newResponse(chunked);
+            response.setBody(body);
+            try {
+                response.send(buffer, channel);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return (int) channel.count;
+        };
+    }
+
+    // Whole-buffer compression as done once per cached file version, returns the compressed size
+    public static ToIntFunction<byte[]> compressor(String encoding, int level) {
+        Properties config = new Properties();
+        config.setProperty("compressionLevel", String.valueOf(level));
+        Compression compression = new Compression(config);
+        return content -> {
+            try {
+                return compression.compress(content, encoding).length;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    public static ToIntFunction<String> contentTypeByFileName() {
+        return fileName -> HTTPResponse.getContentTypeByFileName(fileName).ordinal();
+    }
+
+    // The server's threads are daemons, it lives until the benchmark JVM exits
+    public static void startServer(Properties config) throws IOException {
+        try {
+            new MultiThreadedWebServer(config).start();
+        } catch (InternalServerException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static HTTPResponse newResponse(boolean chunked) {
+        HTTPResponse response = new HTTPResponse();
+        response.setChunkedResponse(chunked);
+        response.setStatus(200);
+        response.addHeader("Content-Type", "text/html");
+        response.addHeader("Connection", "keep-alive");
+        response.addHeader("Keep-Alive", "timeout=5, max=100");
+        return response;
+    }
+
+    // Socket stand-in that accepts and discards everything
+    private static class CountingChannel implements GatheringByteChannel {
+        private long count;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            this.count += length;
+            return length;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
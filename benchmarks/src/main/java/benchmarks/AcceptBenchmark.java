@@ -0,0 +1,93 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// New connections per second: every operation connects, sends one request with Connection: close and waits for the
+// server to close, so the acceptor path is exercised once per operation
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@Threads(16)
+public class AcceptBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"threads", "nio"})
+        public String engine;
+
+        @Param({"1", "4"})
+        public int acceptorThreads;
+
+        @Param({"false", "true"})
+        public boolean reusePort;
+
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            Path home = Files.createTempDirectory("webserver-benchmark");
+            Path root = Files.createDirectories(home.resolve("www"));
+            Files.writeString(root.resolve("index.html"), "<html><body>accept</body></html>");
+            System.setProperty("user.home", home.toString());
+
+            try (ServerSocket freePort = new ServerSocket(0)) {
+                this.port = freePort.getLocalPort();
+            }
+            Properties config = new Properties();
+            config.setProperty("port", String.valueOf(this.port));
+            config.setProperty("root", "~/www/");
+            config.setProperty("defaultPage", "index.html");
+            config.setProperty("maxThreads", "32");
+            config.setProperty("engine", this.engine);
+            config.setProperty("eventLoopThreads", "4");
+            config.setProperty("acceptorThreads", String.valueOf(this.acceptorThreads));
+            config.setProperty("reusePort", String.valueOf(this.reusePort));
+            config.setProperty("accessLogFormat", "off");
+            config.setProperty("logLevel", "warn");
+
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Targets.get("startServer", config);
+            for (int attempt = 0; attempt < 100; attempt++) {
+                try (Socket probe = new Socket("localhost", this.port)) {
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                }
+            }
+            throw new IllegalStateException("Server didn't start on port " + this.port);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        HttpTestClient connection;
+
+        @Setup(Level.Trial)
+        public void create(Server server) {
+            // Without keep-alive the client reconnects for every request
+            this.connection = new HttpTestClient("localhost", server.port, false);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            this.connection.close();
+        }
+    }
+
+    @Benchmark
+    public int connectAndRequest(Server server, Client client) throws IOException {
+        return client.connection.get("/");
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+// CPU time of compressing a page against the bytes it saves: the time per operation is the cost, and the
+// inputBytes / outputBytes counters give the compression ratio for the same run
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    @Param({"gzip", "deflate"})
+    public String encoding;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"4096", "65536"})
+    public int pageSize;
+
+    private byte[] page;
+    private ToIntFunction<byte[]> compressor;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long inputBytes;
+        public long outputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.inputBytes = 0;
+            this.outputBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        this.page = generatePage(this.pageSize);
+        this.compressor = Targets.get("compressor", this.encoding, this.level);
+    }
+
+    @Benchmark
+    public int compress(Sizes sizes) {
+        int compressedSize = this.compressor.applyAsInt(this.page);
+        sizes.inputBytes += this.page.length;
+        sizes.outputBytes += compressedSize;
+        return compressedSize;
+    }
+
+    // Markup-heavy HTML with varying text, generated from a fixed seed so every run compresses the same bytes
+    private static byte[] generatePage(int size) {
+        String[] words = {"server", "request", "response", "header", "socket", "thread", "cache", "buffer", "latency", "throughput"};
+        Random random = new Random(42);
+        StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head><title>Benchmark</title></head><body>\n");
+        while (page.length() < size) {
+            page.append("<div class=\"row\"><span class=\"item-").append(random.nextInt(100)).append("\">");
+            for (int i = 0; i < 8; i++) {
+                page.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            page.append("</span><a href=\"/page/").append(random.nextInt(10000)).append("\">link</a></div>\n");
+        }
+        page.setLength(size);
+        return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,169 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Throughput and latency percentiles of a few measured clients while the server holds 1k or 10k other connections
+// open, half of them idle between requests and half sending theirs slowly. Compares the fixed pool with virtual
+// threads (and the NIO engine). Both ends of every connection are in this JVM: 10000 connections need a file
+// descriptor limit above 20000, and for the fixed pool as many platform threads.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@Threads(8)
+public class ConcurrentClientsBenchmark {
+    // An idle client sends a request this often, well within the keep-alive timeout
+    private static final long IDLE_INTERVAL_MILLIS = 5000;
+    // A slow client takes PADDING_LINES pauses to send each request
+    private static final int PADDING_LINES = 10;
+    private static final long SLOW_PAUSE_MILLIS = 500;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        // fixed / virtual executor with the threaded engine, or the NIO engine
+        @Param({"fixed", "virtual", "nio"})
+        public String mode;
+
+        // Connections held open next to the measured ones
+        @Param({"1000", "10000"})
+        public int connections;
+
+        int port;
+        private final List<HttpTestClient> background = new ArrayList<>();
+        private final List<Thread> backgroundThreads = new ArrayList<>();
+        private volatile boolean running = true;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            // The server resolves its root under user.home, point it at a generated document root
+            Path home = Files.createTempDirectory("webserver-benchmark");
+            Path root = Files.createDirectories(home.resolve("www"));
+            Files.writeString(root.resolve("index.html"), "<html><body>" + "x".repeat(1024) + "</body></html>");
+            System.setProperty("user.home", home.toString());
+
+            try (ServerSocket freePort = new ServerSocket(0)) {
+                this.port = freePort.getLocalPort();
+            }
+            Properties config = new Properties();
+            config.setProperty("port", String.valueOf(this.port));
+            config.setProperty("root", "~/www/");
+            config.setProperty("defaultPage", "index.html");
+            // A fixed pool smaller than the connections never answers the measured clients, each held connection
+            // keeps its thread. Sized to hold them all, it's thread per connection with platform threads.
+            config.setProperty("maxThreads", String.valueOf(this.connections + 64));
+            config.setProperty("maxKeepAliveRequests", String.valueOf(Integer.MAX_VALUE));
+            config.setProperty("keepAliveTimeout", "30000");
+            config.setProperty("acceptBacklog", "4096");
+            config.setProperty("engine", "nio".equals(this.mode) ? "nio" : "threads");
+            config.setProperty("executor", "virtual".equals(this.mode) ? "virtual" : "fixed");
+
+            // The access log goes to the console by default, keep it out of the JMH output
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Targets.get("startServer", config);
+            waitUntilListening();
+            openBackgroundConnections();
+        }
+
+        // Every connection gets a virtual thread of the benchmark's own that answers its first request before it
+        // starts idling or sending slowly, the measurement starts once all of them are open
+        private void openBackgroundConnections() throws InterruptedException {
+            CountDownLatch opened = new CountDownLatch(this.connections);
+            for (int i = 0; i < this.connections; i++) {
+                HttpTestClient client = new HttpTestClient("localhost", this.port, true);
+                boolean slow = i % 2 == 1;
+                this.background.add(client);
+                this.backgroundThreads.add(Thread.ofVirtual().start(() -> runBackgroundClient(client, slow, opened)));
+            }
+            if (!opened.await(2, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Only " + (this.connections - opened.getCount()) + " of " + this.connections + " connections opened");
+            }
+        }
+
+        private void runBackgroundClient(HttpTestClient client, boolean slow, CountDownLatch opened) {
+            boolean counted = false;
+            while (this.running) {
+                try {
+                    if (!counted) {
+                        client.get("/");
+                        opened.countDown();
+                        counted = true;
+                    } else if (slow) {
+                        client.slowGet("/", PADDING_LINES, SLOW_PAUSE_MILLIS);
+                    } else {
+                        Thread.sleep(IDLE_INTERVAL_MILLIS);
+                        client.get("/");
+                    }
+                } catch (IOException e) {
+                    // Refused while the accept backlog was full, the next request reconnects
+                    try {
+                        client.close();
+                        Thread.sleep(100);
+                    } catch (IOException | InterruptedException ignored) {
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stopBackground() throws IOException, InterruptedException {
+            this.running = false;
+            // Interrupting a virtual thread blocked on a socket closes the socket
+            for (Thread thread : this.backgroundThreads) {
+                thread.interrupt();
+            }
+            for (Thread thread : this.backgroundThreads) {
+                thread.join(1000);
+            }
+            for (HttpTestClient client : this.background) {
+                client.close();
+            }
+        }
+
+        private void waitUntilListening() throws InterruptedException {
+            for (int attempt = 0; attempt < 100; attempt++) {
+                try (Socket probe = new Socket("localhost", this.port)) {
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                }
+            }
+            throw new IllegalStateException("Server didn't start on port " + this.port);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        HttpTestClient connection;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) {
+            this.connection = new HttpTestClient("localhost", server.port, true);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            this.connection.close();
+        }
+    }
+
+    @Benchmark
+    public int request(Client client) throws IOException {
+        return client.connection.get("/");
+    }
+}
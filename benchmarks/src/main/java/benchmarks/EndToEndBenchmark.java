@@ -0,0 +1,96 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// Requests per second against an in-process server, each JMH thread is one client connection
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@Threads(8)
+public class EndToEndBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        // fixed / virtual executor with the threaded engine, or the NIO engine
+        @Param({"fixed", "virtual", "nio"})
+        public String mode;
+
+        @Param({"/", "/image.png"})
+        public String path;
+
+        @Param({"true", "false"})
+        public boolean keepAlive;
+
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            // The server resolves its root under user.home, point it at a generated document root
+            Path home = Files.createTempDirectory("webserver-benchmark");
+            Path root = Files.createDirectories(home.resolve("www"));
+            Files.writeString(root.resolve("index.html"), "<html><body>" + "x".repeat(1024) + "</body></html>");
+            Files.write(root.resolve("image.png"), new byte[64 * 1024]);
+            System.setProperty("user.home", home.toString());
+
+            try (ServerSocket freePort = new ServerSocket(0)) {
+                this.port = freePort.getLocalPort();
+            }
+            Properties config = new Properties();
+            config.setProperty("port", String.valueOf(this.port));
+            config.setProperty("root", "~/www/");
+            config.setProperty("defaultPage", "index.html");
+            config.setProperty("maxThreads", "16");
+            config.setProperty("maxKeepAliveRequests", String.valueOf(Integer.MAX_VALUE));
+            config.setProperty("engine", "nio".equals(this.mode) ? "nio" : "threads");
+            config.setProperty("executor", "virtual".equals(this.mode) ? "virtual" : "fixed");
+
+            // The access log goes to the console by default, keep it out of the JMH output
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Targets.get("startServer", config);
+            waitUntilListening();
+        }
+
+        private void waitUntilListening() throws InterruptedException {
+            for (int attempt = 0; attempt < 100; attempt++) {
+                try (Socket probe = new Socket("localhost", this.port)) {
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                }
+            }
+            throw new IllegalStateException("Server didn't start on port " + this.port);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        HttpTestClient connection;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) {
+            this.connection = new HttpTestClient("localhost", server.port, server.keepAlive);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            this.connection.close();
+        }
+    }
+
+    @Benchmark
+    public int request(Server server, Client client) throws IOException {
+        return client.connection.get(server.path);
+    }
+}
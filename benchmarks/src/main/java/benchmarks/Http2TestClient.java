@@ -0,0 +1,180 @@
+package benchmarks;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// Minimal cleartext HTTP/2 client (prior knowledge) used as the load generator. It opens its windows wide up front,
+// sends a whole batch of requests at once and reads the multiplexed responses as they come. Response headers aren't
+// decoded beyond checking for an indexed ":status 200", which is how the server always sends it.
+final class Http2TestClient implements Closeable {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int WINDOW = 1 << 30;
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private int nextStreamId;
+    private long connectionWindow;
+    private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    private byte[] payload = new byte[16384];
+
+    Http2TestClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Requests every path on its own stream and waits for all responses, returns the number of body bytes received
+    int getAll(List<String> paths) throws IOException {
+        if (this.socket == null) {
+            connect();
+        }
+        int firstStreamId = this.nextStreamId;
+        this.frames.reset();
+        for (String path : paths) {
+            writeFrame(HEADERS, FLAG_END_STREAM | FLAG_END_HEADERS, this.nextStreamId, requestHeaders(path));
+            this.nextStreamId += 2;
+        }
+        this.frames.writeTo(this.out);
+        this.out.flush();
+
+        BitSet pending = new BitSet();
+        pending.set(0, paths.size());
+        int received = 0;
+        while (!pending.isEmpty()) {
+            int length = this.in.readUnsignedShort() << 8 | this.in.readUnsignedByte();
+            int type = this.in.readUnsignedByte();
+            int flags = this.in.readUnsignedByte();
+            int streamId = this.in.readInt() & 0x7fffffff;
+            if (length > this.payload.length) {
+                this.payload = new byte[length];
+            }
+            this.in.readFully(this.payload, 0, length);
+            switch (type) {
+                case HEADERS -> {
+                    if (length == 0 || (this.payload[0] & 0xff) != 0x88) {
+                        throw new IOException("Unexpected response status on stream " + streamId);
+                    }
+                }
+                case DATA -> {
+                    received += length;
+                    this.connectionWindow -= length;
+                }
+                case SETTINGS -> {
+                    if ((flags & FLAG_ACK) == 0) {
+                        sendFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+                    }
+                }
+                case PING -> {
+                    if ((flags & FLAG_ACK) == 0) {
+                        sendFrame(PING, FLAG_ACK, 0, Arrays.copyOf(this.payload, 8));
+                    }
+                }
+                case RST_STREAM, GOAWAY -> {
+                    close();
+                    throw new IOException("Stream " + streamId + " failed with frame type " + type);
+                }
+            }
+            if ((flags & FLAG_END_STREAM) != 0 && (type == DATA || type == HEADERS)) {
+                pending.clear((streamId - firstStreamId) / 2);
+            }
+        }
+        // Keeps the connection window open for the next batch
+        if (this.connectionWindow < WINDOW / 2) {
+            sendFrame(WINDOW_UPDATE, 0, 0, int32(WINDOW - (int) this.connectionWindow));
+            this.connectionWindow = WINDOW;
+        }
+        return received;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.socket != null) {
+            this.socket.close();
+            this.socket = null;
+        }
+    }
+
+    private void connect() throws IOException {
+        this.socket = new Socket(this.host, this.port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), 65536));
+        this.out = new BufferedOutputStream(this.socket.getOutputStream(), 65536);
+        this.nextStreamId = 1;
+        this.connectionWindow = WINDOW;
+        this.frames.reset();
+        this.frames.write(PREFACE);
+        // SETTINGS_ENABLE_PUSH = 0, SETTINGS_INITIAL_WINDOW_SIZE = WINDOW, and the connection window to match
+        ByteArrayOutputStream settings = new ByteArrayOutputStream();
+        settings.writeBytes(new byte[]{0, 2, 0, 0, 0, 0, 0, 4});
+        settings.writeBytes(int32(WINDOW));
+        writeFrame(SETTINGS, 0, 0, settings.toByteArray());
+        writeFrame(WINDOW_UPDATE, 0, 0, int32(WINDOW - 65535));
+        this.frames.writeTo(this.out);
+        this.out.flush();
+    }
+
+    // :method GET and :scheme http from the static table, :path and :authority as literals with indexed names
+    private byte[] requestHeaders(String path) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(0x82);
+        block.write(0x86);
+        writeLiteral(block, 4, path);
+        writeLiteral(block, 1, this.host);
+        return block.toByteArray();
+    }
+
+    private static void writeLiteral(ByteArrayOutputStream block, int nameIndex, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        block.write(nameIndex);
+        int length = bytes.length;
+        if (length < 127) {
+            block.write(length);
+        } else {
+            block.write(127);
+            length -= 127;
+            while (length >= 128) {
+                block.write((length & 0x7f) | 0x80);
+                length >>>= 7;
+            }
+            block.write(length);
+        }
+        block.writeBytes(bytes);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) {
+        this.frames.write(payload.length >>> 16);
+        this.frames.write(payload.length >>> 8);
+        this.frames.write(payload.length);
+        this.frames.write(type);
+        this.frames.write(flags);
+        this.frames.writeBytes(int32(streamId));
+        this.frames.writeBytes(payload);
+    }
+
+    private void sendFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        this.frames.reset();
+        writeFrame(type, flags, streamId, payload);
+        this.frames.writeTo(this.out);
+        this.out.flush();
+    }
+
+    private static byte[] int32(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
@@ -0,0 +1,117 @@
+package benchmarks;
+
+import javax.net.SocketFactory;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Minimal HTTP/1.1 client used as the load generator, reconnects whenever the server closes the connection
+final class HttpTestClient implements Closeable {
+    private final String host;
+    private final int port;
+    private final boolean keepAlive;
+    private final SocketFactory socketFactory;
+    private Socket socket;
+    private BufferedInputStream in;
+    private OutputStream out;
+
+    HttpTestClient(String host, int port, boolean keepAlive) {
+        this(host, port, keepAlive, SocketFactory.getDefault());
+    }
+
+    // An SSLSocketFactory makes it an HTTPS client
+    HttpTestClient(String host, int port, boolean keepAlive, SocketFactory socketFactory) {
+        this.host = host;
+        this.port = port;
+        this.keepAlive = keepAlive;
+        this.socketFactory = socketFactory;
+    }
+
+    // Sends a GET and reads the whole response, returns the number of body bytes received
+    int get(String path) throws IOException {
+        if (this.socket == null) {
+            connect();
+        }
+        String request = "GET " + path + " HTTP/1.1\r\nHost: " + this.host + "\r\n"
+                + (this.keepAlive ? "" : "Connection: close\r\n") + "\r\n";
+        this.out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        this.out.flush();
+        return readResponse();
+    }
+
+    // Like get(), but the request is sent a header line at a time with a pause before each of the padding lines, the
+    // way a client on a slow network sends it
+    int slowGet(String path, int paddingLines, long pauseMillis) throws IOException, InterruptedException {
+        if (this.socket == null) {
+            connect();
+        }
+        String requestLine = "GET " + path + " HTTP/1.1\r\nHost: " + this.host + "\r\n"
+                + (this.keepAlive ? "" : "Connection: close\r\n");
+        this.out.write(requestLine.getBytes(StandardCharsets.ISO_8859_1));
+        this.out.flush();
+        for (int i = 0; i < paddingLines; i++) {
+            Thread.sleep(pauseMillis);
+            this.out.write(("X-Padding-" + i + ": slow\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            this.out.flush();
+        }
+        this.out.write(new byte[]{'\r', '\n'});
+        this.out.flush();
+        return readResponse();
+    }
+
+    private int readResponse() throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null || !statusLine.startsWith("HTTP/1.1 200")) {
+            throw new IOException("Unexpected response: " + statusLine);
+        }
+        long contentLength = -1;
+        boolean closeConnection = false;
+        String header;
+        while ((header = readLine()) != null && !header.isEmpty()) {
+            int colon = header.indexOf(':');
+            String name = header.substring(0, colon).trim();
+            String value = header.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                closeConnection = true;
+            }
+        }
+        if (contentLength < 0) {
+            throw new IOException("Response without Content-Length");
+        }
+        this.in.skipNBytes(contentLength);
+        if (closeConnection) {
+            close();
+        }
+        return (int) contentLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.socket != null) {
+            this.socket.close();
+            this.socket = null;
+        }
+    }
+
+    private void connect() throws IOException {
+        this.socket = this.socketFactory.createSocket(this.host, this.port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(this.socket.getInputStream());
+        this.out = new BufferedOutputStream(this.socket.getOutputStream());
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = this.in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
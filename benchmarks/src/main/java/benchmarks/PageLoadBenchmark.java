@@ -0,0 +1,130 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+
+// Time to load a page with many small assets the way a browser does: the page first, then every asset. HTTP/1.1 gets
+// a browser's six keep-alive connections per host, each fetching its share of the assets one after the other,
+// HTTP/2 requests them all at once as streams of a single connection.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class PageLoadBenchmark {
+    private static final int HTTP1_CONNECTIONS = 6;
+
+    @State(Scope.Benchmark)
+    public static class Page {
+        @Param({"http/1.1", "h2"})
+        public String protocol;
+
+        @Param({"50"})
+        public int assets;
+
+        @Param({"2048"})
+        public int assetSize;
+
+        int port;
+        List<String> assetPaths = new ArrayList<>();
+        ExecutorService http1Loaders;
+        List<HttpTestClient> http1Connections = new ArrayList<>();
+        Http2TestClient http2Connection;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            Path home = Files.createTempDirectory("webserver-benchmark");
+            Path root = Files.createDirectories(home.resolve("www"));
+            Files.writeString(root.resolve("index.html"), "<html><body>" + "x".repeat(4096) + "</body></html>");
+            for (int i = 0; i < this.assets; i++) {
+                Files.write(root.resolve("asset-" + i + ".png"), new byte[this.assetSize]);
+                this.assetPaths.add("/asset-" + i + ".png");
+            }
+            System.setProperty("user.home", home.toString());
+
+            try (ServerSocket freePort = new ServerSocket(0)) {
+                this.port = freePort.getLocalPort();
+            }
+            Properties config = new Properties();
+            config.setProperty("port", String.valueOf(this.port));
+            config.setProperty("root", "~/www/");
+            config.setProperty("defaultPage", "index.html");
+            config.setProperty("maxThreads", "16");
+            config.setProperty("maxKeepAliveRequests", String.valueOf(Integer.MAX_VALUE));
+            config.setProperty("accessLogFormat", "off");
+            config.setProperty("logLevel", "warn");
+
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Targets.get("startServer", config);
+            waitUntilListening();
+
+            if ("h2".equals(this.protocol)) {
+                this.http2Connection = new Http2TestClient("localhost", this.port);
+            } else {
+                this.http1Loaders = Executors.newFixedThreadPool(HTTP1_CONNECTIONS);
+                for (int i = 0; i < HTTP1_CONNECTIONS; i++) {
+                    this.http1Connections.add(new HttpTestClient("localhost", this.port, true));
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            if (this.http2Connection != null) {
+                this.http2Connection.close();
+            }
+            for (HttpTestClient connection : this.http1Connections) {
+                connection.close();
+            }
+            if (this.http1Loaders != null) {
+                this.http1Loaders.shutdown();
+            }
+        }
+
+        private void waitUntilListening() throws InterruptedException {
+            for (int attempt = 0; attempt < 100; attempt++) {
+                try (Socket probe = new Socket("localhost", this.port)) {
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                }
+            }
+            throw new IllegalStateException("Server didn't start on port " + this.port);
+        }
+    }
+
+    @Benchmark
+    public int loadPage(Page page) throws Exception {
+        if (page.http2Connection != null) {
+            return page.http2Connection.getAll(List.of("/")) + page.http2Connection.getAll(page.assetPaths);
+        }
+        int received = page.http1Connections.get(0).get("/");
+        List<Future<Integer>> loads = new ArrayList<>(HTTP1_CONNECTIONS);
+        for (int i = 0; i < HTTP1_CONNECTIONS; i++) {
+            HttpTestClient connection = page.http1Connections.get(i);
+            int first = i;
+            loads.add(page.http1Loaders.submit(() -> {
+                int bytes = 0;
+                for (int asset = first; asset < page.assetPaths.size(); asset += HTTP1_CONNECTIONS) {
+                    bytes += connection.get(page.assetPaths.get(asset));
+                }
+                return bytes;
+            }));
+        }
+        for (Future<Integer> load : loads) {
+            received += load.get();
+        }
+        return received;
+    }
+}
@@ -0,0 +1,56 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+    private static final String BROWSER_GET = "GET /images/logo.png?size=large&theme=dark HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: image/avif,image/webp,*/*\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Referer: http://localhost:8080/index.html\r\n"
+            + "Cache-Control: no-cache\r\n"
+            + "\r\n";
+    private static final String FORM_POST = "POST /params_info.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: 47\r\n"
+            + "\r\n"
+            + "name=student&course=networks&year=2024&grade=99";
+
+    @Param({"get", "post"})
+    public String request;
+
+    private byte[] rawRequest;
+    private ToIntFunction<byte[]> parser;
+    private ToIntFunction<byte[]> reader;
+
+    @Setup
+    public void setUp() {
+        this.rawRequest = ("get".equals(this.request) ? BROWSER_GET : FORM_POST).getBytes(StandardCharsets.ISO_8859_1);
+        this.parser = Targets.get("requestParser");
+        this.reader = Targets.get("requestReader");
+    }
+
+    @Benchmark
+    public int parse() {
+        return this.parser.applyAsInt(this.rawRequest);
+    }
+
+    @Benchmark
+    public int readRequest() {
+        return this.reader.applyAsInt(this.rawRequest);
+    }
+}
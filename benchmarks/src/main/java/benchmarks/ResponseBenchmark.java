@@ -0,0 +1,38 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class ResponseBenchmark {
+    @Param({"512", "65536"})
+    public int bodySize;
+
+    private byte[] body;
+    private ToIntFunction<byte[]> plainSender;
+    private ToIntFunction<byte[]> chunkedSender;
+
+    @Setup
+    public void setUp() {
+        this.body = new byte[this.bodySize];
+        this.plainSender = Targets.get("responseSender", false);
+        this.chunkedSender = Targets.get("responseSender", true);
+    }
+
+    @Benchmark
+    public int sendPlain() {
+        return this.plainSender.applyAsInt(this.body);
+    }
+
+    @Benchmark
+    public int sendChunked() {
+        return this.chunkedSender.applyAsInt(this.body);
+    }
+}
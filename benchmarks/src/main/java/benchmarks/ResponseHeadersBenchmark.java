@@ -0,0 +1,34 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class ResponseHeadersBenchmark {
+    private IntSupplier headers;
+    private ToIntFunction<String> contentType;
+
+    @Setup
+    public void setUp() {
+        this.headers = Targets.get("responseHeaders");
+        this.contentType = Targets.get("contentTypeByFileName");
+    }
+
+    @Benchmark
+    public int writeHeaders() {
+        return this.headers.getAsInt();
+    }
+
+    @Benchmark
+    public int contentTypeByFileName() {
+        return this.contentType.applyAsInt("images/photo.png") + this.contentType.applyAsInt("index.html");
+    }
+}
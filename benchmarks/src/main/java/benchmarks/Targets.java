@@ -0,0 +1,26 @@
+package benchmarks;
+
+// Looks up the factories of the default-package BenchmarkTargets class, see its comment for why
+final class Targets {
+    private Targets() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T get(String factoryName, Object... arguments) {
+        try {
+            Class<?>[] parameterTypes = new Class<?>[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] instanceof Boolean) {
+                    parameterTypes[i] = boolean.class;
+                } else if (arguments[i] instanceof Integer) {
+                    parameterTypes[i] = int.class;
+                } else {
+                    parameterTypes[i] = arguments[i].getClass();
+                }
+            }
+            return (T) Class.forName("BenchmarkTargets").getMethod(factoryName, parameterTypes).invoke(null, arguments);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't load benchmark target " + factoryName, e);
+        }
+    }
+}
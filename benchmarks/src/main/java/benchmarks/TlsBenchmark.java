@@ -0,0 +1,151 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// What HTTPS costs against an in-process server: a new connection per request with a full handshake, a resumed one or
+// none at all, and requests on kept-alive connections with and without TLS
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@Threads(4)
+public class TlsBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        SelfSignedKeyStore keyStore;
+        int port;
+        int tlsPort;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            // The server resolves its root under user.home, point it at a generated document root
+            Path home = Files.createTempDirectory("webserver-benchmark");
+            Path root = Files.createDirectories(home.resolve("www"));
+            Files.writeString(root.resolve("index.html"), "<html><body>" + "x".repeat(1024) + "</body></html>");
+            Files.write(root.resolve("image.png"), new byte[64 * 1024]);
+            System.setProperty("user.home", home.toString());
+            this.keyStore = new SelfSignedKeyStore(home);
+
+            this.port = freePort();
+            this.tlsPort = freePort();
+            Properties config = new Properties();
+            config.setProperty("port", String.valueOf(this.port));
+            config.setProperty("tlsPort", String.valueOf(this.tlsPort));
+            config.setProperty("tlsKeyStore", this.keyStore.getPath().toString());
+            config.setProperty("tlsKeyStorePassword", SelfSignedKeyStore.PASSWORD);
+            config.setProperty("root", "~/www/");
+            config.setProperty("defaultPage", "index.html");
+            config.setProperty("maxThreads", "16");
+            config.setProperty("maxKeepAliveRequests", String.valueOf(Integer.MAX_VALUE));
+
+            // The access log goes to the console by default, keep it out of the JMH output
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Targets.get("startServer", config);
+            waitUntilListening(this.port);
+            waitUntilListening(this.tlsPort);
+        }
+
+        private static int freePort() throws IOException {
+            try (ServerSocket freePort = new ServerSocket(0)) {
+                return freePort.getLocalPort();
+            }
+        }
+
+        private static void waitUntilListening(int port) throws InterruptedException {
+            for (int attempt = 0; attempt < 100; attempt++) {
+                try (Socket probe = new Socket("localhost", port)) {
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                }
+            }
+            throw new IllegalStateException("Server didn't start on port " + port);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class NewConnection {
+        // plaintext is the baseline, full makes the client forget its session after every connection
+        @Param({"plaintext", "full", "resumed"})
+        public String handshake;
+
+        SSLContext context;
+        SocketFactory socketFactory;
+        int port;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws Exception {
+            // One context per client thread, so forgetting the sessions doesn't affect the other threads
+            this.context = server.keyStore.clientContext();
+            boolean plaintext = "plaintext".equals(this.handshake);
+            this.socketFactory = plaintext ? SocketFactory.getDefault() : this.context.getSocketFactory();
+            this.port = plaintext ? server.port : server.tlsPort;
+        }
+
+        void forgetSessions() {
+            SSLSessionContext sessions = this.context.getClientSessionContext();
+            for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+                SSLSession session = sessions.getSession(ids.nextElement());
+                if (session != null) {
+                    session.invalidate();
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class KeptAlive {
+        @Param({"http", "https"})
+        public String scheme;
+
+        @Param({"/", "/image.png"})
+        public String path;
+
+        HttpTestClient connection;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws Exception {
+            this.connection = "https".equals(this.scheme)
+                    ? new HttpTestClient("localhost", server.tlsPort, true, server.keyStore.clientContext().getSocketFactory())
+                    : new HttpTestClient("localhost", server.port, true);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            this.connection.close();
+        }
+    }
+
+    // Connect, handshake, one small request, close
+    @Benchmark
+    public int newConnection(Server server, NewConnection client) throws IOException {
+        if ("full".equals(client.handshake)) {
+            client.forgetSessions();
+        }
+        try (HttpTestClient connection = new HttpTestClient("localhost", client.port, false, client.socketFactory)) {
+            return connection.get("/");
+        }
+    }
+
+    @Benchmark
+    public int keptAlive(KeptAlive client) throws IOException {
+        return client.connection.get(client.path);
+    }
+}
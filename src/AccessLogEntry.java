@@ -0,0 +1,112 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+// One served request. Only the values are captured on the request path, the line is formatted by the log writer.
+public class AccessLogEntry {
+    private static final DateTimeFormatter COMMON_LOG_TIME = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final long time;
+    private final String remoteHost;
+    private final String method;
+    private final String target;
+    private final String httpVersion;
+    private final int status;
+    private final long bytes;
+    private final String referer;
+    private final String userAgent;
+    private final long durationMicros;
+
+    public AccessLogEntry(String remoteHost, HTTPRequest request, HTTPResponse response, long startNanos) {
+        this.durationMicros = (System.nanoTime() - startNanos) / 1000;
+        this.time = System.currentTimeMillis() - this.durationMicros / 1000;
+        this.remoteHost = remoteHost;
+        this.method = request == null ? null : request.getType();
+        this.target = request == null ? null : request.getTarget();
+        this.httpVersion = request == null ? null : request.getHttpVersion();
+        this.status = response.getStatusCode();
+        this.bytes = response.getBodyLength();
+        this.referer = request == null ? null : request.getHeader("referer");
+        this.userAgent = request == null ? null : request.getHeader("user-agent");
+    }
+
+    // Common Log Format, Combined adds the referer and user agent
+    public void appendCommon(StringBuilder line, boolean combined, TimestampCache timestamps) {
+        line.append(this.remoteHost).append(" - - [").append(timestamps.format(this.time)).append("] \"");
+        if (this.method == null || this.target == null) {
+            line.append('-');
+        } else {
+            appendEscaped(line, this.method);
+            line.append(' ');
+            appendEscaped(line, this.target);
+            line.append(' ').append(this.httpVersion);
+        }
+        line.append("\" ").append(this.status).append(' ');
+        if (this.bytes > 0) {
+            line.append(this.bytes);
+        } else {
+            line.append('-');
+        }
+        if (combined) {
+            line.append(" \"");
+            appendEscaped(line, this.referer == null ? "-" : this.referer);
+            line.append("\" \"");
+            appendEscaped(line, this.userAgent == null ? "-" : this.userAgent);
+            line.append('"');
+        }
+        line.append('\n');
+    }
+
+    public void appendJson(StringBuilder line) {
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(this.time)).append('"');
+        appendJsonField(line, "remote", this.remoteHost);
+        appendJsonField(line, "method", this.method);
+        appendJsonField(line, "target", this.target);
+        appendJsonField(line, "protocol", this.httpVersion);
+        line.append(",\"status\":").append(this.status);
+        if (this.bytes >= 0) {
+            line.append(",\"bytes\":").append(this.bytes);
+        }
+        appendJsonField(line, "referer", this.referer);
+        appendJsonField(line, "userAgent", this.userAgent);
+        line.append(",\"durationMicros\":").append(this.durationMicros).append("}\n");
+    }
+
+    private static void appendJsonField(StringBuilder line, String name, String value) {
+        if (value != null) {
+            line.append(",\"").append(name).append("\":\"");
+            appendEscaped(line, value);
+            line.append('"');
+        }
+    }
+
+    // Escapes quotes, backslashes and control characters so a client can't forge log lines
+    private static void appendEscaped(StringBuilder line, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    // The writer formats many entries within the same second, so the formatted timestamp is reused
+    public static class TimestampCache {
+        private long second = -1;
+        private String formatted;
+
+        public String format(long timeMillis) {
+            long currentSecond = timeMillis / 1000;
+            if (currentSecond != this.second) {
+                this.second = currentSecond;
+                this.formatted = COMMON_LOG_TIME.format(Instant.ofEpochMilli(timeMillis));
+            }
+            return this.formatted;
+        }
+    }
+}
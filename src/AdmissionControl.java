@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Decides on the accept path whether a new connection gets served. Connections that don't are answered with a
+// pre-encoded 503 by the acceptor itself, before any per-connection state is created for them.
+public class AdmissionControl {
+    private static final byte[] STATUS_LINE = "HTTP/1.1 503 Service Unavailable\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] PAGE = "<html><body><h1>503 Service Unavailable</h1></body></html>".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+    private final int maxConnectionsPerIp;
+    // Everything after the Date header, which is the only part that changes
+    private final byte[] rejectionHeadersAndBody;
+    private final Map<String, Integer> connectionsPerIp = new ConcurrentHashMap<>();
+
+    public AdmissionControl(Properties serverConfig) {
+        // 0 doesn't limit the connections of a single client
+        this.maxConnectionsPerIp = Integer.parseInt(serverConfig.getProperty("maxConnectionsPerIp", "0"));
+        int retryAfter = Integer.parseInt(serverConfig.getProperty("retryAfter", "1"));
+        String headers = "Retry-After: " + retryAfter + "\r\n"
+                + "Content-Type: " + ContentType.HTML.getValue() + "\r\n"
+                + "Content-Length: " + PAGE.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        byte[] headerBytes = headers.getBytes(StandardCharsets.ISO_8859_1);
+        this.rejectionHeadersAndBody = new byte[headerBytes.length + PAGE.length];
+        System.arraycopy(headerBytes, 0, this.rejectionHeadersAndBody, 0, headerBytes.length);
+        System.arraycopy(PAGE, 0, this.rejectionHeadersAndBody, headerBytes.length, PAGE.length);
+    }
+
+    // Every successful call must be paired with release() once the connection is closed
+    public boolean tryAcquire(String remoteHost) {
+        if (this.maxConnectionsPerIp <= 0) {
+            return true;
+        }
+        if (this.connectionsPerIp.merge(remoteHost, 1, Integer::sum) > this.maxConnectionsPerIp) {
+            release(remoteHost);
+            return false;
+        }
+        return true;
+    }
+
+    public void release(String remoteHost) {
+        if (this.maxConnectionsPerIp > 0) {
+            this.connectionsPerIp.computeIfPresent(remoteHost, (host, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    // Answers 503 and closes. A fresh socket's send buffer always has room for the response, so this doesn't block.
+    public void reject(SocketChannel channel) {
+        try (channel) {
+            channel.write(new ByteBuffer[]{ByteBuffer.wrap(STATUS_LINE), ByteBuffer.wrap(HTTPDate.headerLine()), ByteBuffer.wrap(this.rejectionHeadersAndBody)});
+            channel.shutdownOutput();
+            // Closing with unread request bytes resets the connection, which can discard the 503 before the client reads it
+            channel.configureBlocking(false);
+            channel.read(ByteBuffer.allocate(DRAIN_BUFFER_SIZE));
+        } catch (IOException e) {
+            // The client is gone already, there's nobody left to tell
+        }
+    }
+}
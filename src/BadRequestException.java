@@ -1,5 +1,17 @@
 public class BadRequestException extends Exception {
+    private final int statusCode;
+
     public BadRequestException(String message) {
+        this(message, 400);
+    }
+
+    // For requests rejected with a more specific status than 400, such as 413 for a body over the size limit
+    public BadRequestException(String message, int statusCode) {
         super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return this.statusCode;
     }
 }
@@ -0,0 +1,18 @@
+// Receives a request body piece by piece while it's being read, so the body is never held as a whole
+public interface BodyConsumer {
+    // For bodies nothing is done with, they are read and dropped
+    BodyConsumer DISCARD = new BodyConsumer() {
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void finish() {
+        }
+    };
+
+    void write(byte[] buffer, int offset, int length);
+
+    // Called once after the last byte of the body
+    void finish();
+}
@@ -0,0 +1,13 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+// A response body generated while it's being sent. Unless its length is known up front it's sent chunked
+public interface BodyProducer {
+    void writeTo(OutputStream out) throws IOException;
+
+    // The same body in pieces, for the non-blocking engine. Null for producers only the threads engine sends, like
+    // the reverse proxy's.
+    default IncrementalBody openIncremental() throws IOException {
+        return null;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Recycles the buffers requests are read into and responses are serialized into. Without it every connection
+// allocates them and drops them again, which is most of what a short connection allocates. Buffers come in power of
+// two sizes from 4KB to 64KB. A platform thread keeps a couple of each size for the next connection it serves, without
+// any contention, the others go to a bounded shared pool. Virtual threads end with their connection, they only use the
+// shared pool.
+public class BufferPool {
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+    private static final int SIZE_CLASSES = 5;
+    private static final int THREAD_CACHE_SIZE = 2;
+    // Indexed by size class, null where the shared pool has no room for that size
+    private final List<ArrayBlockingQueue<byte[]>> shared;
+    private final ThreadLocal<ThreadCache> threadCaches = ThreadLocal.withInitial(ThreadCache::new);
+    private final LongAdder allocations = new LongAdder();
+
+    public BufferPool(Properties serverConfig) {
+        // Bytes the shared pool may hold, spread evenly over the sizes. 0 disables it, leaving the thread caches.
+        long poolSize = Long.parseLong(serverConfig.getProperty("bufferPoolSize", "16777216"));
+        this.shared = new ArrayList<>(SIZE_CLASSES);
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            int capacity = (int) Math.min(Integer.MAX_VALUE, poolSize / SIZE_CLASSES / sizeOf(i));
+            this.shared.add(capacity > 0 ? new ArrayBlockingQueue<>(capacity) : null);
+        }
+    }
+
+    // A buffer of at least the given size, rounded up to the next pooled size. Larger ones aren't pooled.
+    public byte[] acquire(int minSize) {
+        if (minSize > MAX_SIZE) {
+            this.allocations.increment();
+            return new byte[minSize];
+        }
+        int sizeClass = sizeClassOf(minSize);
+        byte[] buffer = null;
+        if (!Thread.currentThread().isVirtual()) {
+            buffer = this.threadCaches.get().poll(sizeClass);
+        }
+        ArrayBlockingQueue<byte[]> pooled = this.shared.get(sizeClass);
+        if (buffer == null && pooled != null) {
+            buffer = pooled.poll();
+        }
+        if (buffer == null) {
+            this.allocations.increment();
+            buffer = new byte[sizeOf(sizeClass)];
+        }
+        return buffer;
+    }
+
+    // Hands a buffer back, its content is left as it is. Buffers that didn't come from acquire() are dropped, so
+    // are the ones that don't fit anymore.
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1) {
+            return;
+        }
+        int sizeClass = sizeClassOf(length);
+        if (!Thread.currentThread().isVirtual() && this.threadCaches.get().offer(sizeClass, buffer)) {
+            return;
+        }
+        ArrayBlockingQueue<byte[]> pooled = this.shared.get(sizeClass);
+        if (pooled != null) {
+            pooled.offer(buffer);
+        }
+    }
+
+    // Buffers that had to be allocated because none of the right size was pooled
+    public long getAllocations() {
+        return this.allocations.sum();
+    }
+
+    public int getSharedBuffers() {
+        int buffers = 0;
+        for (ArrayBlockingQueue<byte[]> pooled : this.shared) {
+            buffers += pooled == null ? 0 : pooled.size();
+        }
+        return buffers;
+    }
+
+    private static int sizeClassOf(int size) {
+        return size <= MIN_SIZE ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    private static int sizeOf(int sizeClass) {
+        return MIN_SIZE << sizeClass;
+    }
+
+    private static class ThreadCache {
+        private final byte[][][] buffers = new byte[SIZE_CLASSES][THREAD_CACHE_SIZE][];
+        private final int[] counts = new int[SIZE_CLASSES];
+
+        private byte[] poll(int sizeClass) {
+            if (this.counts[sizeClass] == 0) {
+                return null;
+            }
+            int last = --this.counts[sizeClass];
+            byte[] buffer = this.buffers[sizeClass][last];
+            this.buffers[sizeClass][last] = null;
+            return buffer;
+        }
+
+        private boolean offer(int sizeClass, byte[] buffer) {
+            if (this.counts[sizeClass] == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            this.buffers[sizeClass][this.counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+}
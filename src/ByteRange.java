@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// One satisfiable range of a "Range: bytes=..." request header, resolved against the file size
+public class ByteRange {
+    // More ranges than this (or overlapping ones, RFC 7233 section 6.1) are treated like a missing Range header, so a
+    // single request can't make the server send the same bytes over and over
+    private static final int MAX_RANGES = 16;
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    // Returns the satisfiable ranges (empty if there are none, which is answered with 416),
+    // or null if the header is malformed or abusive and should be ignored
+    public static List<ByteRange> parse(String header, long size) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        long totalLength = 0;
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            long first = parseNumber(spec.substring(0, dash));
+            long last = parseNumber(spec.substring(dash + 1));
+            ByteRange range;
+            if (dash == 0) {
+                // "-N" is the last N bytes
+                if (last < 0) {
+                    return null;
+                }
+                range = last == 0 || size == 0 ? null : new ByteRange(Math.max(0, size - last), size - 1);
+            } else {
+                // "A-" or "A-B", B is inclusive and may lie past the end of the file
+                if (first < 0 || (dash < spec.length() - 1 && (last < 0 || last < first))) {
+                    return null;
+                }
+                long end = dash == spec.length() - 1 ? size - 1 : Math.min(last, size - 1);
+                range = first >= size ? null : new ByteRange(first, end);
+            }
+            if (range != null) {
+                ranges.add(range);
+                totalLength += range.getLength();
+            }
+        }
+        if (ranges.size() > 1 && (totalLength > size || overlap(ranges))) {
+            return null;
+        }
+        return ranges;
+    }
+
+    // The parts are sent in the requested order, only the check looks at them sorted
+    private static boolean overlap(List<ByteRange> ranges) {
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(ByteRange::getStart));
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).getStart() <= sorted.get(i - 1).getEnd()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseNumber(String digits) {
+        if (digits.isEmpty() || digits.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(digits);
+    }
+
+    public long getStart() {
+        return this.start;
+    }
+
+    public long getEnd() {
+        return this.end;
+    }
+
+    public long getLength() {
+        return this.end - this.start + 1;
+    }
+
+    // Value of the Content-Range header
+    public String toContentRange(long size) {
+        return "bytes " + this.start + "-" + this.end + "/" + size;
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// multipart/byteranges body for a request with several ranges. Each part is copied straight from the cached
+// content or from its offset in the file, and the total length is known up front so no chunking is needed.
+public class ByteRangesBody implements BodyProducer {
+    private final CachedFile file;
+    private final List<ByteRange> ranges;
+    private final String boundary;
+    private final byte[][] partHeaders;
+    private final byte[] closingBoundary;
+    private final long length;
+
+    public ByteRangesBody(CachedFile file, List<ByteRange> ranges) {
+        this.file = file;
+        this.ranges = ranges;
+        this.boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        this.partHeaders = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            String partHeader = "\r\n--" + this.boundary + "\r\nContent-Type: " + file.getContentType()
+                    + "\r\nContent-Range: " + range.toContentRange(file.getSize()) + "\r\n\r\n";
+            this.partHeaders[i] = partHeader.getBytes(StandardCharsets.ISO_8859_1);
+            length += this.partHeaders[i].length + range.getLength();
+        }
+        this.closingBoundary = ("\r\n--" + this.boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        this.length = length + this.closingBoundary.length;
+    }
+
+    public String getContentType() {
+        return "multipart/byteranges; boundary=" + this.boundary;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < this.ranges.size(); i++) {
+            ByteRange range = this.ranges.get(i);
+            out.write(this.partHeaders[i]);
+            if (this.file.getContent() != null) {
+                out.write(this.file.getContent(), (int) range.getStart(), (int) range.getLength());
+            } else {
+                new FileRegion(Paths.get(this.file.getPath()), range.getStart(), range.getLength()).writeTo(out);
+            }
+        }
+        out.write(this.closingBoundary);
+    }
+
+    @Override
+    public IncrementalBody openIncremental() throws IOException {
+        return new IncrementalBody() {
+            // Opened with the first part read from the file, one channel serves all the parts
+            private FileChannel fileChannel;
+            private ByteBuffer input;
+            private int part;
+            private long partPosition = -1;
+
+            // A part's headers go out with the start of its data, a piece never spans two parts
+            @Override
+            public boolean writeNext(OutputStream out, int maxLength) throws IOException {
+                if (this.part == ByteRangesBody.this.ranges.size()) {
+                    out.write(ByteRangesBody.this.closingBoundary);
+                    close();
+                    return false;
+                }
+                ByteRange range = ByteRangesBody.this.ranges.get(this.part);
+                if (this.partPosition == -1) {
+                    out.write(ByteRangesBody.this.partHeaders[this.part]);
+                    this.partPosition = 0;
+                }
+                int length = (int) Math.min(maxLength, range.getLength() - this.partPosition);
+                long start = range.getStart() + this.partPosition;
+                byte[] content = ByteRangesBody.this.file.getContent();
+                if (content != null) {
+                    out.write(content, (int) start, length);
+                } else {
+                    readFile(out, start, length);
+                }
+                this.partPosition += length;
+                if (this.partPosition == range.getLength()) {
+                    this.part++;
+                    this.partPosition = -1;
+                }
+                return true;
+            }
+
+            private void readFile(OutputStream out, long start, int length) throws IOException {
+                if (this.fileChannel == null) {
+                    this.fileChannel = FileChannel.open(Paths.get(ByteRangesBody.this.file.getPath()));
+                }
+                if (this.input == null || this.input.capacity() < length) {
+                    this.input = ByteBuffer.allocate(length);
+                }
+                this.input.clear().limit(length);
+                while (this.input.hasRemaining()) {
+                    if (this.fileChannel.read(this.input, start + this.input.position()) == -1) {
+                        throw new EOFException("File was truncated while being sent");
+                    }
+                }
+                out.write(this.input.array(), 0, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (this.fileChannel != null) {
+                    this.fileChannel.close();
+                    this.fileChannel = null;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,98 @@
+import java.nio.file.Paths;
+
+public class CachedFile {
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final byte[] content;
+    private final String contentType;
+    private final String contentLength;
+    private final String etag;
+    private final String lastModifiedHeader;
+    // Compressed forms of the content, only kept for files in the cache and added by FileCache.putVariant
+    private volatile byte[] gzipVariant;
+    private volatile byte[] deflateVariant;
+
+    public CachedFile(String path, long size, long lastModified, byte[] content) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.content = content;
+        // Headers are computed once per cached version of the file instead of once per request
+        this.contentType = HTTPResponse.getContentTypeByFileName(path).getValue();
+        this.contentLength = String.valueOf(size);
+        // Derived from the metadata, so a 304 never needs the content and the tag changes whenever the file does
+        this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+        this.lastModifiedHeader = HTTPDate.format(lastModified);
+    }
+
+    // Same file version, with its content loaded
+    public CachedFile withContent(byte[] content) {
+        return new CachedFile(this.path, this.size, this.lastModified, content);
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    // Null for files too large to be kept in memory, these are streamed from disk instead
+    public byte[] getContent() {
+        return this.content;
+    }
+
+    public FileRegion toFileRegion() {
+        return new FileRegion(Paths.get(this.path), 0, this.size);
+    }
+
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    public String getContentLength() {
+        return this.contentLength;
+    }
+
+    public String getETag() {
+        return this.etag;
+    }
+
+    // Every encoding of the file is a different representation and needs its own tag
+    public String getETag(String contentEncoding) {
+        if (contentEncoding == null) {
+            return this.etag;
+        }
+        return this.etag.substring(0, this.etag.length() - 1) + "-" + contentEncoding + "\"";
+    }
+
+    public byte[] getVariant(String contentEncoding) {
+        return Compression.GZIP.equals(contentEncoding) ? this.gzipVariant : this.deflateVariant;
+    }
+
+    void setVariant(String contentEncoding, byte[] variant) {
+        if (Compression.GZIP.equals(contentEncoding)) {
+            this.gzipVariant = variant;
+        } else {
+            this.deflateVariant = variant;
+        }
+    }
+
+    // Memory the file takes in the cache, content and compressed variants
+    public long getCachedSize() {
+        long size = this.content == null ? 0 : this.content.length;
+        byte[] gzip = this.gzipVariant;
+        byte[] deflate = this.deflateVariant;
+        return size + (gzip == null ? 0 : gzip.length) + (deflate == null ? 0 : deflate.length);
+    }
+
+    public String getLastModifiedHeader() {
+        return this.lastModifiedHeader;
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Encodes whatever is written to it as HTTP chunks of up to chunkSize bytes, without buffering the whole body
+public class ChunkedOutputStream extends FilterOutputStream {
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+    // Room for up to 8 hex digits and CRLF in front of the chunk data
+    private static final int HEADER_RESERVE = 10;
+    private static final int MIN_CHUNK_SIZE = 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // Chunk header, data and trailing CRLF share one array so each chunk is a single write. The last chunk also has
+    // room for the terminating zero-length chunk, so the end of the body doesn't cost an extra write
+    private final byte[] chunk;
+    private final int chunkSize;
+    private int count;
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        super(out);
+        this.chunkSize = chunkSize;
+        this.chunk = new byte[HEADER_RESERVE + chunkSize + 2 + LAST_CHUNK.length];
+    }
+
+    // A configured chunk size wins, otherwise chunks are sized to fill the socket send buffer
+    public static int chunkSizeFor(int configuredChunkSize, int socketSendBufferSize) {
+        int chunkSize = configuredChunkSize > 0 ? configuredChunkSize : socketSendBufferSize;
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (this.count == this.chunkSize) {
+            writeChunk();
+        }
+        this.chunk[HEADER_RESERVE + this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (this.count == this.chunkSize) {
+                writeChunk();
+            }
+            int length = Math.min(len, this.chunkSize - this.count);
+            System.arraycopy(b, off, this.chunk, HEADER_RESERVE + this.count, length);
+            this.count += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    // Sends the data written so far as a chunk, so producers can push data as soon as it's available
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        this.out.flush();
+    }
+
+    // Writes the last chunk, the underlying stream stays open for the next response
+    public void finish() throws IOException {
+        if (this.count == 0) {
+            this.out.write(LAST_CHUNK);
+        } else {
+            writeChunk(true);
+        }
+        this.out.flush();
+    }
+
+    private void writeChunk() throws IOException {
+        if (this.count > 0) {
+            writeChunk(false);
+        }
+    }
+
+    private void writeChunk(boolean last) throws IOException {
+        int headerLength = writeChunkHeader(this.chunk, HEADER_RESERVE, this.count);
+        int end = HEADER_RESERVE + this.count;
+        this.chunk[end++] = '\r';
+        this.chunk[end++] = '\n';
+        if (last) {
+            System.arraycopy(LAST_CHUNK, 0, this.chunk, end, LAST_CHUNK.length);
+            end += LAST_CHUNK.length;
+        }
+        this.out.write(this.chunk, HEADER_RESERVE - headerLength, end - (HEADER_RESERVE - headerLength));
+        this.count = 0;
+    }
+
+    // Writes the "<hex length>\r\n" chunk header so that it ends right before headerEnd, returns its length
+    private static int writeChunkHeader(byte[] buffer, int headerEnd, int length) {
+        int position = headerEnd;
+        buffer[--position] = '\n';
+        buffer[--position] = '\r';
+        do {
+            buffer[--position] = HEX_DIGITS[length & 0xf];
+            length >>>= 4;
+        } while (length != 0);
+        return headerEnd - position;
+    }
+}
@@ -1,194 +1,242 @@
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.Socket;
-import java.util.Map;
-import java.util.stream.Collectors;
-
-import static java.lang.Thread.sleep;
+import java.nio.channels.GatheringByteChannel;
 
 public class ClientHandler implements Runnable {
     private final Socket clientSessionSocket;
     private final MultiThreadedWebServer server;
-    private final BufferedReader clientInputStream;
-    private final DataOutputStream clientOutputStream;
-    private final String clientAddress;
-
-    public ClientHandler(Socket clientSessionSocket, MultiThreadedWebServer server) throws ClientHandlerException {
-        try {
-            this.clientSessionSocket = clientSessionSocket;
-            this.clientAddress = clientSessionSocket.getInetAddress() + ":" + clientSessionSocket.getPort();
-            this.server = server;
-            this.clientInputStream = new BufferedReader(new InputStreamReader(this.clientSessionSocket.getInputStream()));
-            this.clientOutputStream = new DataOutputStream(this.clientSessionSocket.getOutputStream());
-        } catch (IOException e) {
-            throw new ClientHandlerException(e);
-        }
+    // Accepted on the HTTPS port, the connection is served through the TLS socket layered over the accepted one
+    private final boolean secure;
+    // Everything below is set up once a worker picks the connection up, a queued connection holds no buffers
+    // and the acceptor doesn't spend time on it
+    private InputStream clientInputStream;
+    private SSLSocket tlsSocket;
+    // The socket's own channel, or the TLS socket's stream
+    private GatheringByteChannel clientChannel;
+    private HTTPRequestReader requestReader;
+    private ResponseBuffer responseBuffer;
+    // Recycled for every request, a response is sent before the next request is read
+    private final HTTPResponse recycledResponse = new HTTPResponse();
+    private String clientAddress;
+    private final String remoteHost;
+    private final ServerLog log;
+    private final Metrics metrics;
+    private final long acceptedNanos;
+    private boolean keepAlive;
+    private int chunkSize;
+    // Waiting for the next request on a kept-alive connection, which a draining server may close right away
+    private volatile boolean idle;
+    private volatile Http2Connection http2Connection;
+
+    public ClientHandler(Socket clientSessionSocket, MultiThreadedWebServer server, String remoteHost, long acceptedNanos, boolean secure) {
+        this.clientSessionSocket = clientSessionSocket;
+        this.server = server;
+        this.secure = secure;
+        this.remoteHost = remoteHost;
+        this.log = server.getLog();
+        this.metrics = server.getMetrics();
+        this.acceptedNanos = acceptedNanos;
     }
 
     @Override
     public void run() {
+        this.metrics.recordQueueWait(this.acceptedNanos);
+        this.metrics.connectionOpened();
+        this.clientAddress = this.clientSessionSocket.getInetAddress() + ":" + this.clientSessionSocket.getPort();
+        this.log.debug("Accepted new connection from " + this.clientAddress);
         try {
-            this.handleRequest();
+            this.server.getSocketSettings().configure(this.clientSessionSocket.getChannel());
+            this.clientSessionSocket.setSoTimeout(this.server.getReadTimeout()); //Avoid indefinably wait on read() when content-length > actual content
+            if (this.secure) {
+                // Bounded by the read timeout too, a client that stalls the handshake only holds this worker
+                this.tlsSocket = this.server.getTlsSettings().wrap(this.clientSessionSocket);
+                long handshakeStartMillis = System.currentTimeMillis();
+                long handshakeStartNanos = System.nanoTime();
+                try {
+                    this.tlsSocket.startHandshake();
+                } catch (IOException e) {
+                    // Plaintext requests to the HTTPS port and scanners end here, nothing can be answered
+                    this.metrics.recordTlsHandshakeFailure();
+                    this.log.debug("[" + this.clientAddress + "]: TLS handshake failed: " + e.getMessage());
+                    return;
+                }
+                // A resumed session is the one the client had before, created ahead of this handshake
+                boolean resumed = this.tlsSocket.getSession().getCreationTime() < handshakeStartMillis;
+                this.metrics.recordTlsHandshake(resumed, handshakeStartNanos);
+                this.clientInputStream = this.tlsSocket.getInputStream();
+                this.clientChannel = new StreamChannel(this.tlsSocket.getOutputStream());
+            } else {
+                this.clientInputStream = this.clientSessionSocket.getInputStream();
+                this.clientChannel = this.clientSessionSocket.getChannel();
+            }
+            this.requestReader = new HTTPRequestReader(this.clientInputStream, this.server.getMaxRequestBodySize(), this.server.getBufferPool(),
+                    this.server.getReverseProxy(), this.remoteHost, this.secure);
+            this.responseBuffer = new ResponseBuffer(this.server.getBufferPool());
+            this.chunkSize = ChunkedOutputStream.chunkSizeFor(this.server.getChunkSize(), this.clientSessionSocket.getSendBufferSize());
+            // Serve requests one after the other (including pipelined ones) until either side asks to close
+            int servedRequests = 0;
+            boolean keepConnection = true;
+            while (keepConnection) {
+                if (servedRequests > 0) {
+                    // Between requests the read timeout is the keep-alive idle timeout
+                    this.clientSessionSocket.setSoTimeout(this.server.getKeepAliveTimeout());
+                    this.idle = true;
+                    if (this.server.isDraining()) {
+                        break;
+                    }
+                }
+                servedRequests++;
+                this.keepAlive = servedRequests < this.server.getMaxKeepAliveRequests();
+                keepConnection = this.handleRequest();
+            }
         } catch (Exception e) {
-            System.out.println("[" + this.clientAddress + "]: Failed to respond to client");
+            this.log.warn("[" + this.clientAddress + "]: Failed to respond to client");
+        } finally {
+            try {
+                this.log.debug("[" + this.clientAddress + "]: Closing client connection ...");
+                // Sends the TLS close_notify before closing the socket under it
+                if (this.tlsSocket != null) {
+                    this.tlsSocket.close();
+                }
+                this.clientSessionSocket.close();
+                if (this.clientInputStream != null) {
+                    this.clientInputStream.close();
+                }
+            } catch (IOException e) {
+                this.log.warn("[" + this.clientAddress + "]: Failed to close client sockets streams");
+            }
+            // Back to the pool for the next connection
+            if (this.requestReader != null) {
+                this.requestReader.release();
+            }
+            if (this.responseBuffer != null) {
+                this.responseBuffer.release();
+            }
+            this.metrics.connectionClosed();
+            this.server.getAdmissionControl().release(this.remoteHost);
+            this.server.connectionClosed(this);
         }
     }
 
-    private void handleRequest() throws IOException {
+    // Called when the server starts draining. An idle connection, with nothing of its next request read yet, is closed
+    // now, a busy one after its response, and an HTTP/2 connection once the streams it has already started are answered.
+    void drain() {
+        Http2Connection http2Connection = this.http2Connection;
+        if (http2Connection != null) {
+            http2Connection.drain();
+        } else if (this.idle && !this.requestReader.isRequestStarted()) {
+            try {
+                // The blocked read sees the end of the stream, and the connection closes as if the client had left
+                this.clientSessionSocket.shutdownInput();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    // Closes the connection whatever it's doing, when the drain timeout is over
+    void close() {
+        try {
+            this.clientSessionSocket.close();
+        } catch (IOException e) {
+            this.log.warn("[" + this.clientAddress + "]: Failed to close client socket");
+        }
+    }
+
+    // Returns whether the connection should be kept open for another request
+    private boolean handleRequest() throws IOException {
         HTTPRequest request = null;
-        HTTPResponse response = new HTTPResponse();
+        RequestProcessor requestProcessor = this.server.getRequestProcessor();
+        long startNanos = 0;
 
         try {
             try {
-                // Parse the client request
-                request = new HTTPRequest();
-                request.readFullRequest(this.clientInputStream);
-                System.out.println("[" + this.clientAddress + "]: HTTP request Headers: \n" + request.getRawHeaders());
-                request.parseRequest();
+                // Read and parse the client request
+                request = this.requestReader.readRequest();
+                this.idle = false;
+                if (request == null) {
+                    // Connection closed or idle timed out before a new request arrived
+                    return false;
+                }
+                startNanos = System.nanoTime();
+                this.metrics.recordParse(this.requestReader.getParseNanos());
+                if (this.log.isDebugEnabled()) {
+                    this.log.debug("[" + this.clientAddress + "]: HTTP request Headers: \n" + request.getRawHeaders());
+                }
             } catch (IOException e) {
                 // Could not read client's request
-                System.out.println("[" + this.clientAddress + "]: Server failed to read client's request");
+                this.log.warn("[" + this.clientAddress + "]: Server failed to read client's request");
                 throw e;
             } catch (BadRequestException e) {
-                System.out.println(e.getMessage() + "!!!!");
-                if ("HEAD".equals(request.getType())) {
-                    response.setHeadResponse(true);
-                }
-                // 400
-                handleBadRequestError(response);
-                return;
-            }
-
-            // Request is valid
-            // Check if the request is a HEAD request
-            if ("HEAD".equals(request.getType())) {
-                // In order to exclude the response body
-                response.setHeadResponse(true);
+                this.log.debug("[" + this.clientAddress + "]: " + e.getMessage());
+                // The rest of the stream can't be trusted after a malformed request
+                this.keepAlive = false;
+                // 400, or a more specific 4xx/5xx
+                request = this.requestReader.getCurrentRequest();
+                sendResponseToClient(requestProcessor.handleBadRequestError(request, e.getStatusCode()), request, System.nanoTime());
+                return false;
             }
-            response.setChunkedResponse(request.isChunkedResponse());
 
-            boolean isValidType = verifyRequestType(request);
-            // 501
-            if (!isValidType) {
-                handleNotImplementedError(response);
-                return;
+            // Over TLS the client chooses HTTP/2 during the handshake (ALPN) and starts with the preface, h2c is cleartext only
+            if (this.server.isHttp2Enabled() && !this.server.isDraining()
+                    && (request.isHttp2Preface() || !this.secure && Http2Connection.isUpgradeRequest(request))) {
+                switchToHttp2(request);
+                return false;
             }
 
-            String requestedFilePath = System.getProperty("user.home") + this.server.getRootDirectory().substring(1) + (request.getRequestedPage().equals("/") ? this.server.getDefaultPage() : request.getRequestedPage().substring(1));
-            File file = new File(requestedFilePath);
-
-            // 404
-            if (!file.exists() || file.isDirectory()) {
-                handleNotFoundError(response);
-                return;
-            }
-
-            // Read the file content
-            byte[] fileContent = readFile(file);
-
-            // 200
-            response.setStatus(200);
-            response.addHeader("Content-Type", HTTPResponse.getContentTypeByFileName(requestedFilePath).getValue());
-
-            // Handle TRACE request
-            if (request.getType().equals("TRACE")) {
-                handleTraceRequest(response, request);
-                return;
-            }
-
-            // Handle params_info file
-            if (request.getRequestedPage().equals("/params_info.html") && request.getType().equals("POST")) {
-                fileContent = addParamsToFileContent(fileContent, request.getParameters());
+            // Request is valid
+            this.keepAlive = this.keepAlive && request.isKeepAlive() && !this.server.isDraining();
+            this.recycledResponse.reset();
+            HTTPResponse response = requestProcessor.process(request, this.recycledResponse);
+            // After a 505 to the HTTP/2 preface only HTTP/2 frames follow, a close-delimited body ends with the connection
+            if (response.getStatusCode() == 500 || response.getStatusCode() == 505 || response.isCloseDelimited()) {
+                this.keepAlive = false;
             }
-
-            // Regular GET or POST request
-            response.setBody(fileContent);
-            sendResponseToClient(response);
+            sendResponseToClient(response, request, startNanos);
+            return this.keepAlive;
 
         } catch (Exception e) {
             // 500
-            handleInternalServerError(response);
-        } finally {
-            try {
-                System.out.println("[" + this.clientAddress + "]: Closing client connection ...\n");
-                this.clientSessionSocket.close();
-                this.clientInputStream.close();
-                this.clientOutputStream.close();
-            } catch (IOException e) {
-                System.out.println("[" + this.clientAddress + "]: Failed to close client sockets streams");
-            }
+            this.keepAlive = false;
+            sendResponseToClient(requestProcessor.handleInternalServerError(new HTTPResponse()), request, startNanos == 0 ? System.nanoTime() : startNanos);
+            return false;
         }
     }
 
-    private void handleBadRequestError(HTTPResponse response) throws IOException {
-        response.setStatus(400);
-        response.addHeader("Content-Type", "text/html");
-        String body = "<html><body><h1>400 Bad Request</h1></body></html>";
-        response.setBody(body.getBytes());
-        sendResponseToClient(response);
-    }
-
-    private void handleNotImplementedError(HTTPResponse response) throws IOException {
-        response.setStatus(501);
-        response.addHeader("Content-Type", "text/html");
-        String body = "<html><body><h1>501 Not Implemented</h1></body></html>";
-        response.setBody(body.getBytes());
-        sendResponseToClient(response);
-    }
-
-    private void handleNotFoundError(HTTPResponse response) throws IOException {
-        response.setStatus(404);
-        response.addHeader("Content-Type", "text/html");
-        String body = "<html><body><h1>404 Not Found</h1></body></html>";
-        response.setBody(body.getBytes());
-        sendResponseToClient(response);
-    }
-
-    private void handleInternalServerError(HTTPResponse response) throws IOException {
-        response.setStatus(500);
-        response.addHeader("Content-Type", "text/html");
-        String body = "<html><body><h1>500 Internal Server Error</h1></body></html>";
-        response.setBody(body.getBytes());
-        sendResponseToClient(response);
-    }
-
-    private void handleTraceRequest(HTTPResponse response, HTTPRequest request) throws IOException {
-        response.addHeader("Content-Type", HTTPResponse.getContentTypeByFileName("trace").getValue());
-        response.setBody(request.getRawRequest().getBytes());
-        sendResponseToClient(response);
-    }
-
-    private boolean verifyRequestType(HTTPRequest request) {
-        return (request.getType().equals("GET") || request.getType().equals("POST") ||
-                request.getType().equals("HEAD") || request.getType().equals("TRACE"));
-    }
-
-    private byte[] readFile(File file) {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] bFile = new byte[(int)file.length()];
-
-            // Read until the end of the stream
-            while (fis.available() != 0) {
-                fis.read(bFile, 0, bFile.length);
+    // Serves the rest of the connection with HTTP/2. An upgrade request is answered on stream 1 once the client sent
+    // the preface, which the request reader reads up to where the frames begin.
+    private void switchToHttp2(HTTPRequest request) {
+        try {
+            HTTPRequest upgradeRequest = null;
+            if (!request.isHttp2Preface()) {
+                Http2Connection.switchProtocols(this.clientChannel);
+                // Answered after the preface is read, so it can't be recycled for it
+                upgradeRequest = this.requestReader.detachRequest();
+                request = this.requestReader.readRequest();
+                if (request == null || !request.isHttp2Preface()) {
+                    this.log.debug("[" + this.clientAddress + "]: No HTTP/2 preface after the upgrade");
+                    return;
+                }
             }
-            return bFile;
-        } catch (IOException e) {
-            System.out.println("Failed to read requested file");
+            InputStream in = new SequenceInputStream(new ByteArrayInputStream(this.requestReader.takeBuffered()), this.clientInputStream);
+            this.http2Connection = new Http2Connection(this.clientSessionSocket, this.clientChannel, this.secure, this.server, this.remoteHost, this.clientAddress, in);
+            this.http2Connection.serve(upgradeRequest);
+        } catch (Exception e) {
+            // Nothing can be answered with HTTP/1 anymore
+            this.log.debug("[" + this.clientAddress + "]: HTTP/2 connection failed: " + e.getMessage());
         }
-        return new byte[1];
     }
 
-    private static byte[] addParamsToFileContent (byte[] fileContent, Map<String, String> requestParams) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        outputStream.write(fileContent);
-        outputStream.write("</br>The parameters of your request: ".getBytes());
-        outputStream.write(requestParams.toString().getBytes());
-
-        fileContent = outputStream.toByteArray();
-        return fileContent;
-    }
-
-    private void sendResponseToClient(HTTPResponse response) throws IOException {
-        System.out.println("[" + this.clientAddress + "]: Response Headers: \n" + response.getHeaders());
-        response.send(this.clientOutputStream);
+    private void sendResponseToClient(HTTPResponse response, HTTPRequest request, long startNanos) throws IOException {
+        this.server.getRequestProcessor().addConnectionHeaders(response, this.keepAlive);
+        response.setChunkSize(this.chunkSize);
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("[" + this.clientAddress + "]: Response Headers: \n" + response.getHeaders());
+        }
+        long writeStartNanos = System.nanoTime();
+        response.send(this.responseBuffer, this.clientChannel);
+        this.log.access(this.remoteHost, request, response, startNanos);
+        this.metrics.recordRequest(request, response, startNanos, writeStartNanos);
     }
 }
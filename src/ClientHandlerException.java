@@ -1,5 +0,0 @@
-public class ClientHandlerException extends Exception {
-    public ClientHandlerException(Throwable e) {
-        super(e);
-    }
-}
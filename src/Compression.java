@@ -0,0 +1,218 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Content-Encoding negotiation and the gzip/deflate encoders used for responses
+public class Compression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    private static final int ENCODER_BUFFER_SIZE = 8192;
+    private final List<String> encodings;
+    private final Set<String> compressibleTypes;
+    private final long minSize;
+    private final int level;
+
+    public Compression(Properties serverConfig) {
+        // In order of preference, empty disables compression
+        this.encodings = splitList(serverConfig.getProperty("compression", "gzip,deflate"));
+        this.compressibleTypes = new HashSet<>(splitList(serverConfig.getProperty("compressibleTypes", "text/html,icon")));
+        this.minSize = Long.parseLong(serverConfig.getProperty("compressionMinSize", "256"));
+        this.level = Integer.parseInt(serverConfig.getProperty("compressionLevel", "6"));
+    }
+
+    // Images are already compressed, and for tiny files the encoding overhead outweighs the savings
+    public boolean isCompressible(CachedFile file) {
+        return !this.encodings.isEmpty() && this.compressibleTypes.contains(file.getContentType())
+                && !ContentType.IMAGE.getValue().equals(file.getContentType()) && file.getSize() >= this.minSize;
+    }
+
+    // The enabled encoding the client accepts with the highest q-value (ties go by our preference), or null for identity
+    public String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String chosen = null;
+        double chosenQuality = 0;
+        for (String encoding : this.encodings) {
+            double quality = qualityOf(acceptEncoding, encoding);
+            if (quality > chosenQuality) {
+                chosen = encoding;
+                chosenQuality = quality;
+            }
+        }
+        return chosen;
+    }
+
+    // The q-value the client gives the encoding, directly or through "*", 0 if it's not acceptable
+    private static double qualityOf(String acceptEncoding, String encoding) {
+        double wildcardQuality = 0;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parameters = element.split(";");
+            String name = parameters[0].trim();
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(encoding)) {
+                return quality;
+            } else if (name.equals("*")) {
+                wildcardQuality = quality;
+            }
+        }
+        return wildcardQuality;
+    }
+
+    // Whole-buffer compression, used once per file version whose variant is then cached
+    public byte[] compress(byte[] content, String encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+        try (OutputStream encoder = newEncoder(compressed, encoding)) {
+            encoder.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    // Compresses the file region while it's being sent, without holding the file or its compressed form in memory
+    public BodyProducer compressing(FileRegion region, String encoding) {
+        return new BodyProducer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                // The encoder is closed to free its native memory, the connection's stream must stay open
+                try (OutputStream encoder = newEncoder(new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        this.out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                }, encoding)) {
+                    region.writeTo(encoder);
+                }
+            }
+
+            @Override
+            public IncrementalBody openIncremental() throws IOException {
+                return new IncrementalCompression(region, encoding);
+            }
+        };
+    }
+
+    // Reads the next piece of the file for each piece asked for, and hands on whatever the encoder made of it so far
+    private class IncrementalCompression implements IncrementalBody {
+        private final FileChannel file;
+        private final long end;
+        private long position;
+        private final String encoding;
+        // Created by the first writeNext(), a gzip encoder writes its header right away
+        private OutputStream encoder;
+        // Where the encoder's output goes during the current writeNext()
+        private OutputStream target = OutputStream.nullOutputStream();
+        private ByteBuffer input;
+        private boolean finished;
+
+        private IncrementalCompression(FileRegion region, String encoding) throws IOException {
+            this.file = region.open();
+            this.position = region.getPosition();
+            this.end = region.getPosition() + region.getCount();
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean writeNext(OutputStream out, int maxLength) throws IOException {
+            this.target = out;
+            try {
+                if (this.encoder == null) {
+                    this.encoder = newEncoder(new OutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            IncrementalCompression.this.target.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            IncrementalCompression.this.target.write(b, off, len);
+                        }
+                    }, this.encoding);
+                }
+                if (this.input == null || this.input.capacity() < maxLength) {
+                    this.input = ByteBuffer.allocate(maxLength);
+                }
+                this.input.clear().limit((int) Math.min(maxLength, this.end - this.position));
+                if (this.input.hasRemaining()) {
+                    int read = this.file.read(this.input, this.position);
+                    if (read == -1) {
+                        throw new EOFException("File was truncated while being sent");
+                    }
+                    this.position += read;
+                    this.encoder.write(this.input.array(), 0, read);
+                }
+                if (this.position < this.end) {
+                    return true;
+                }
+                // Writes what the encoder still holds and the trailer
+                this.finished = true;
+                this.encoder.close();
+                this.file.close();
+                return false;
+            } finally {
+                this.target = OutputStream.nullOutputStream();
+            }
+        }
+
+        // Frees the encoder's native memory when the connection closes before the end of the body
+        @Override
+        public void close() throws IOException {
+            if (!this.finished) {
+                this.finished = true;
+                try {
+                    if (this.encoder != null) {
+                        this.encoder.close();
+                    }
+                } finally {
+                    this.file.close();
+                }
+            }
+        }
+    }
+
+    private OutputStream newEncoder(OutputStream out, String encoding) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out, ENCODER_BUFFER_SIZE) {
+                {
+                    this.def.setLevel(Compression.this.level);
+                }
+            };
+        }
+        // HTTP's "deflate" is the zlib format, which is what Deflater produces by default
+        return new DeflaterOutputStream(out, new Deflater(this.level), ENCODER_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                this.def.end();
+            }
+        };
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.isBlank()) {
+                items.add(item.trim().toLowerCase());
+            }
+        }
+        return items;
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// Watches the configuration file and hands it to the running server each time it's saved. Editors save in several
+// steps (truncate and write, or write a temporary file and rename it), so events are collected for a moment first.
+public class ConfigReloader implements Closeable {
+    private static final long SETTLE_MILLIS = 200;
+    private final Path configFile;
+    private final MultiThreadedWebServer server;
+    private final WatchService watchService;
+
+    public ConfigReloader(Path configFile, MultiThreadedWebServer server) throws IOException {
+        this.configFile = configFile.toAbsolutePath().normalize();
+        this.server = server;
+        // Directories are what can be watched, renames onto the file show up as a create
+        this.watchService = this.configFile.getFileSystem().newWatchService();
+        this.configFile.getParent().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread watcher = new Thread(this::watch, "config-reloader");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public static Properties load(Path configFile) throws IOException {
+        Properties config = new Properties();
+        try (InputStream in = Files.newInputStream(configFile)) {
+            config.load(in);
+        }
+        return config;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.watchService.close();
+    }
+
+    private void watch() {
+        Path fileName = this.configFile.getFileName();
+        while (true) {
+            try {
+                WatchKey key = this.watchService.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context());
+                    }
+                    key.reset();
+                } while ((key = this.watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                if (changed) {
+                    reload();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    private void reload() {
+        try {
+            this.server.reload(load(this.configFile));
+        } catch (IOException | IllegalArgumentException e) {
+            // Keeps serving with the settings it has, the next save is tried again
+            this.server.getLog().warn("Failed to reload " + this.configFile + ", keeping the current configuration: " + e.getMessage());
+        }
+    }
+}
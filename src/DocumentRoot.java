@@ -0,0 +1,191 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory index of the files under the document root: request path -> file metadata with its headers precomputed.
+// It's built at startup and kept current by a WatchService, so resolving a request is a single map lookup without
+// any syscall. Only files found under the root are indexed, so a path that leads out of it (through "..", or a
+// symbolic link pointing elsewhere) is simply not found.
+public class DocumentRoot implements Closeable {
+    private static final WatchEvent.Kind<?>[] WATCHED_EVENTS = {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY};
+    private final Path root;
+    private final String defaultPage;
+    private final ServerLog log;
+    private final Map<String, CachedFile> files = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+
+    public DocumentRoot(String rootDirectory, String defaultPage, ServerLog log) throws IOException {
+        // "~/" stands for the user's home directory
+        String directory = rootDirectory.startsWith("~") ? System.getProperty("user.home") + rootDirectory.substring(1) : rootDirectory;
+        Path root = Paths.get(directory).toAbsolutePath().normalize();
+        this.defaultPage = "/" + defaultPage;
+        this.log = log;
+        this.watchService = root.getFileSystem().newWatchService();
+        if (Files.isDirectory(root)) {
+            root = root.toRealPath();
+            this.root = root;
+            index(root);
+        } else {
+            this.root = root;
+            log.warn("Document root " + root + " doesn't exist, every request will be answered with 404");
+        }
+        log.info("Indexed " + this.files.size() + " files under " + this.root);
+
+        Thread watcher = new Thread(this::watch, "document-root-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Null if there is no such file under the root
+    public CachedFile lookup(String requestedPage) {
+        return this.files.get(requestedPage.equals("/") ? this.defaultPage : requestedPage);
+    }
+
+    // A file kept next to the given one with the suffix appended, such as its precompressed .gz
+    public CachedFile lookupSibling(CachedFile file, String suffix) {
+        return this.files.get(toRequestPath(Paths.get(file.getPath())) + suffix);
+    }
+
+    public Collection<CachedFile> getFiles() {
+        return Collections.unmodifiableCollection(this.files.values());
+    }
+
+    public int getFileCount() {
+        return this.files.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.watchService.close();
+    }
+
+    // Adds every file under the directory, and watches each directory for changes
+    private void index(Path directory) throws IOException {
+        Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (!isInsideRoot(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watchedDirectories.put(dir.register(watchService, WATCHED_EVENTS), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (attributes.isRegularFile() && isInsideRoot(file)) {
+                    put(file, attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Unreadable entries and symbolic link loops are left out of the index
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = this.watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = this.watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                        // Events were lost, only a new walk over the whole tree can tell what changed
+                        rescan();
+                    } else {
+                        onChange(event.kind(), directory.resolve((Path) event.context()));
+                    }
+                } catch (IOException e) {
+                    this.log.warn("Failed to update the document root index: " + e.getMessage());
+                }
+            }
+            if (!key.reset()) {
+                // The directory was deleted or can't be watched anymore
+                this.watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private void onChange(WatchEvent.Kind<?> kind, Path path) throws IOException {
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            remove(path);
+        } else if (Files.isDirectory(path)) {
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                // Files may have been created in it before it was watched
+                index(path);
+            }
+        } else {
+            refresh(path);
+        }
+    }
+
+    private void refresh(Path file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(file);
+            return;
+        }
+        if (attributes.isRegularFile() && isInsideRoot(file)) {
+            put(file, attributes);
+        } else {
+            remove(file);
+        }
+    }
+
+    private void rescan() throws IOException {
+        index(this.root);
+        Iterator<CachedFile> indexed = this.files.values().iterator();
+        while (indexed.hasNext()) {
+            if (!Files.isRegularFile(Paths.get(indexed.next().getPath()))) {
+                indexed.remove();
+            }
+        }
+    }
+
+    private void put(Path file, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        this.files.compute(toRequestPath(file), (requestPath, indexed) -> {
+            // Unchanged files keep their entry, modify events also fire for writes that change nothing we track
+            if (indexed != null && indexed.getSize() == size && indexed.getLastModified() == lastModified) {
+                return indexed;
+            }
+            return new CachedFile(file.toString(), size, lastModified, null);
+        });
+    }
+
+    // Removes the file, or everything under it if it was a directory
+    private void remove(Path path) {
+        String requestPath = toRequestPath(path);
+        String directoryPrefix = requestPath + "/";
+        this.files.keySet().removeIf(indexed -> indexed.equals(requestPath) || indexed.startsWith(directoryPrefix));
+    }
+
+    private boolean isInsideRoot(Path path) throws IOException {
+        return !Files.isSymbolicLink(path) || path.toRealPath().startsWith(this.root);
+    }
+
+    private String toRequestPath(Path file) {
+        return "/" + this.root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+}
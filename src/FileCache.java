@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class FileCache {
+    // Access-ordered, so iteration starts from the least recently used file
+    private final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxSize;
+    private final long maxEntrySize;
+    private long currentSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram readTimes = new LatencyHistogram();
+
+    public FileCache(long maxSize, long maxEntrySize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(maxEntrySize, maxSize);
+    }
+
+    // Returns the cached copy of an indexed file if it's the same version, otherwise the indexed metadata as it is
+    public CachedFile lookup(CachedFile indexed) {
+        synchronized (this) {
+            CachedFile cachedFile = this.entries.get(indexed.getPath());
+            if (cachedFile != null && cachedFile.getSize() == indexed.getSize() && cachedFile.getLastModified() == indexed.getLastModified()) {
+                this.hits.increment();
+                return cachedFile;
+            }
+        }
+        return indexed;
+    }
+
+    // Completes a file returned by lookup with its content, reading and caching it unless it's too large
+    public CachedFile load(CachedFile file) throws IOException {
+        if (file.getContent() != null) {
+            return file;
+        }
+        this.misses.increment();
+        if (file.getSize() > this.maxEntrySize) {
+            // Too large to cache, the content is streamed on send
+            return file;
+        }
+        CachedFile loadedFile = read(file);
+        put(loadedFile);
+        return loadedFile;
+    }
+
+    // Loads an indexed file ahead of its first request, unless it's cached already. Returns false if it doesn't fit
+    // without evicting other files.
+    public boolean preload(CachedFile indexed) throws IOException {
+        synchronized (this) {
+            if (this.entries.containsKey(indexed.getPath())) {
+                return true;
+            }
+            if (indexed.getSize() > this.maxEntrySize || this.currentSize + indexed.getSize() > this.maxSize) {
+                return false;
+            }
+        }
+        put(read(indexed));
+        return true;
+    }
+
+    // Read outside the lock so a slow disk doesn't block hits on other files
+    private CachedFile read(CachedFile file) throws IOException {
+        long readStart = System.nanoTime();
+        Path path = Paths.get(file.getPath());
+        byte[] content = Files.readAllBytes(path);
+        this.readTimes.recordNanos(System.nanoTime() - readStart);
+        CachedFile loadedFile;
+        if (content.length == file.getSize()) {
+            loadedFile = file.withContent(content);
+        } else {
+            // Changed since it was indexed and the index hasn't caught up yet, describe what was actually read
+            loadedFile = new CachedFile(file.getPath(), content.length, Files.getLastModifiedTime(path).toMillis(), content);
+        }
+        return loadedFile;
+    }
+
+    private synchronized void put(CachedFile file) {
+        CachedFile replaced = this.entries.put(file.getPath(), file);
+        if (replaced != null) {
+            this.currentSize -= replaced.getCachedSize();
+        }
+        this.currentSize += file.getCachedSize();
+        evict();
+    }
+
+    // Keeps a compressed form of a cached file, counted against the cache size like its content.
+    // Files no longer (or never) in the cache don't keep it, their variant would never be found again
+    public synchronized void putVariant(CachedFile file, String contentEncoding, byte[] variant) {
+        if (this.entries.get(file.getPath()) != file || file.getVariant(contentEncoding) != null) {
+            return;
+        }
+        file.setVariant(contentEncoding, variant);
+        this.currentSize += variant.length;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, CachedFile>> leastRecentlyUsed = this.entries.entrySet().iterator();
+        while (this.currentSize > this.maxSize && leastRecentlyUsed.hasNext()) {
+            CachedFile evicted = leastRecentlyUsed.next().getValue();
+            leastRecentlyUsed.remove();
+            this.currentSize -= evicted.getCachedSize();
+            this.evictions.increment();
+        }
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    public LatencyHistogram getReadTimes() {
+        return this.readTimes;
+    }
+
+    public synchronized long getCurrentSize() {
+        return this.currentSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class FileRegion {
+    private final Path path;
+    private final long position;
+    private final long count;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    public FileRegion(Path path, long position, long count) {
+        this.path = path;
+        this.position = position;
+        this.count = count;
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    public long getPosition() {
+        return this.position;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public FileChannel open() throws IOException {
+        return FileChannel.open(this.path, StandardOpenOption.READ);
+    }
+
+    // Zero-copy transfer (sendfile when the target is a socket channel), the file is never loaded into the heap
+    public void transferTo(WritableByteChannel target) throws IOException {
+        try (FileChannel file = open()) {
+            long transferred = 0;
+            while (transferred < this.count) {
+                long written = file.transferTo(this.position + transferred, this.count - transferred, target);
+                if (written <= 0 && this.position + transferred >= file.size()) {
+                    throw new EOFException("File was truncated while being sent: " + this.path);
+                }
+                transferred += written;
+            }
+        }
+    }
+
+    // Fallback for streams without a channel, copies through one fixed-size buffer
+    public void writeTo(OutputStream target) throws IOException {
+        try (FileChannel file = open()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(1, this.count)));
+            long remaining = this.count;
+            file.position(this.position);
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int read = file.read(buffer);
+                if (read == -1) {
+                    throw new EOFException("File was truncated while being sent: " + this.path);
+                }
+                target.write(buffer.array(), 0, read);
+                remaining -= read;
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+// Splits an application/x-www-form-urlencoded body into parameters as it streams in. Only the pair being read is
+// buffered, pairs are added to the parameters as soon as their '&' arrives.
+public class FormParser implements BodyConsumer {
+    private final Map<String, String> parameters;
+    private byte[] pair = new byte[64];
+    private int pairLength;
+    // Position of the first '=' in the current pair, -1 while there is none
+    private int separator = -1;
+
+    public FormParser(Map<String, String> parameters) {
+        this.parameters = parameters;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '&') {
+                endPair();
+                continue;
+            }
+            if (b == '=' && this.separator == -1) {
+                this.separator = this.pairLength;
+            }
+            if (this.pairLength == this.pair.length) {
+                this.pair = Arrays.copyOf(this.pair, this.pair.length * 2);
+            }
+            this.pair[this.pairLength++] = b;
+        }
+    }
+
+    @Override
+    public void finish() {
+        endPair();
+    }
+
+    // Both delimiters are ASCII, so decoding each name and value separately gives the same text as decoding the body
+    private void endPair() {
+        if (this.separator != -1) {
+            String name = new String(this.pair, 0, this.separator, StandardCharsets.UTF_8);
+            String value = new String(this.pair, this.separator + 1, this.pairLength - this.separator - 1, StandardCharsets.UTF_8);
+            this.parameters.put(name, value);
+        } else if (this.pairLength > 0) {
+            this.parameters.put(new String(this.pair, 0, this.pairLength, StandardCharsets.UTF_8), "");
+        }
+        this.pairLength = 0;
+        this.separator = -1;
+    }
+}
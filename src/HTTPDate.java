@@ -0,0 +1,56 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+// The Date header only changes once per second, so it's formatted and encoded once per second instead of per response
+public class HTTPDate {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static volatile HTTPDate current = new HTTPDate(System.currentTimeMillis() / 1000);
+
+    private final long second;
+    private final String value;
+    private final byte[] headerLine;
+
+    private HTTPDate(long second) {
+        this.second = second;
+        this.value = format(second * 1000);
+        this.headerLine = ("Date: " + this.value + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public static String format(long timeMillis) {
+        return FORMAT.format(Instant.ofEpochMilli(timeMillis));
+    }
+
+    // Returns -1 for a date that can't be parsed, which callers treat like a missing header
+    public static long parse(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    public static String now() {
+        return current().value;
+    }
+
+    // "Date: <now>\r\n", encoded
+    public static byte[] headerLine() {
+        return current().headerLine;
+    }
+
+    private static HTTPDate current() {
+        long second = System.currentTimeMillis() / 1000;
+        HTTPDate date = current;
+        if (date.second != second) {
+            // Threads racing here format the same second, whichever is published last is just as correct
+            date = new HTTPDate(second);
+            current = date;
+        }
+        return date;
+    }
+}
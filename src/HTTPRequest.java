@@ -1,137 +1,179 @@
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.net.SocketTimeoutException;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public class HTTPRequest {
     private String type;
+    private String target;
     private String requestedPage;
-    private int contentLength;
+    private long contentLength;
+    private boolean chunkedBody;
     private boolean chunkedResponse;
+    private String httpVersion;
+    private String connection;
     private final Map<String, String> parameters;
-    private final StringBuilder rawFullRequest;
-    private final StringBuilder rawHeaders;
-    private String requestLine;
-    private static final String CRLF = "\r\n";
+    private final Map<String, String> headers;
+    // Reused by the next request on the connection, only the first rawHeadersLength bytes are this request's
+    private byte[] rawHeaders;
+    private int rawHeadersLength;
+    // Only kept for TRACE, which echoes it. Other bodies are parsed or dropped while they stream in.
+    private ByteArrayOutputStream body;
+    private long bodyLength;
+    // Set when the request is forwarded to an upstream server instead of being served here
+    private ProxyExchange proxyExchange;
 
     public HTTPRequest() {
         this.parameters = new HashMap<>();
-        this.rawFullRequest = new StringBuilder();
-        this.rawHeaders = new StringBuilder();
+        this.headers = new HashMap<>();
     }
 
-    public void readFullRequest(BufferedReader inFromClient) throws IOException, BadRequestException {
-        String line;
-        int requestBodyLength = 0;
-        while ((line = inFromClient.readLine()) != null && !line.isEmpty()) {
-            this.rawFullRequest.append(line).append(CRLF);
-            this.rawHeaders.append(line).append(CRLF);
+    // Clears everything for the next request on the same connection, the maps and header bytes keep their storage
+    void recycle() {
+        this.type = null;
+        this.target = null;
+        this.requestedPage = null;
+        this.contentLength = 0;
+        this.chunkedBody = false;
+        this.chunkedResponse = false;
+        this.httpVersion = null;
+        this.connection = null;
+        this.parameters.clear();
+        this.headers.clear();
+        this.rawHeadersLength = 0;
+        this.body = null;
+        this.bodyLength = 0;
+        this.proxyExchange = null;
+    }
+
+    // The setters below are called by HTTPRequestParser while it reads the request
+
+    void setRequestLine(String type, String target, String httpVersion) {
+        this.type = type;
+        this.target = target;
+        this.httpVersion = httpVersion;
+        parseURL(target);
+    }
 
-            if (line.startsWith("Content-Length:")) {
+    // Header names arrive lower-cased, repeated headers are combined into one comma separated value. Cookies are the
+    // exception, they're combined with semicolons (HTTP/2 clients send every cookie on its own).
+    void addHeader(String name, String value) throws BadRequestException {
+        String separator = name.equals("cookie") ? "; " : ", ";
+        this.headers.merge(name, value, (first, second) -> first + separator + second);
+        switch (name) {
+            case "content-length" -> {
                 try {
-                    requestBodyLength = Integer.parseInt(line.substring("Content-Length: ".length()));
-                    if (requestBodyLength < 0) {
-                        throw new BadRequestException("Content-Length must be non-negative");
-                    }
-                }  catch (NumberFormatException e) {
-                    throw new BadRequestException ("Content-Length header value isn't a parsable Integer");
+                    this.contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new BadRequestException("Content-Length header value isn't a parsable Integer");
+                }
+                if (this.contentLength < 0) {
+                    throw new BadRequestException("Content-Length must be non-negative");
+                }
+            }
+            case "transfer-encoding" -> {
+                // chunked is the only transfer coding understood, and it has to be the last one applied
+                String[] codings = value.split(",");
+                if (!"chunked".equalsIgnoreCase(codings[codings.length - 1].trim())) {
+                    throw new BadRequestException("Unsupported Transfer-Encoding: " + value, 501);
                 }
+                this.chunkedBody = true;
             }
+            case "chunked" -> this.chunkedResponse = "yes".equalsIgnoreCase(value);
+            case "connection" -> this.connection = value.toLowerCase();
         }
+    }
 
-        if (line == null) {
-            throw new BadRequestException("Request is missing final CRLF");
+    void endHeaders(byte[] buffer, int from, int to) throws BadRequestException {
+        int length = to - from;
+        if (this.rawHeaders == null || this.rawHeaders.length < length) {
+            this.rawHeaders = new byte[length];
         }
-
-        // End of headers
-        this.rawFullRequest.append(CRLF);
-
-        // Read body content if exists
-        if (requestBodyLength > 0) {
-            char[] body = new char[requestBodyLength];
-            try {
-                inFromClient.read(body, 0, requestBodyLength);
-            } catch (SocketTimeoutException e) {
-                throw new BadRequestException("Make sure Content-Length header value isn't greater the actual content length and try again.");
-            }
-            this.rawFullRequest.append(new String(body));
+        System.arraycopy(buffer, from, this.rawHeaders, 0, length);
+        this.rawHeadersLength = length;
+        if (this.chunkedBody) {
+            // Transfer-Encoding overrides Content-Length
+            this.contentLength = -1;
+        }
+        if (hasBody() && ("GET".equalsIgnoreCase(this.type) || "HEAD".equalsIgnoreCase(this.type))) {
+            throw new BadRequestException("Request of type " + this.type + " cannot have a body");
         }
     }
 
-    public void parseRequest() throws BadRequestException {
-        String[] requestByLines = this.rawFullRequest.toString().split(CRLF);
-        if (requestByLines.length < 1) {
-            throw new BadRequestException("Empty request");
-        }
+    boolean hasBody() {
+        return this.chunkedBody || this.contentLength > 0;
+    }
 
-        // Parse the request line
-        this.requestLine = requestByLines[0];
-        if (this.requestLine == null || !this.requestLine.matches("^.+ /.* HTTP/1\\.[01]$")) {
-            throw new BadRequestException("Invalid request line: " + this.requestLine);
-        }
+    boolean isChunkedBody() {
+        return this.chunkedBody;
+    }
 
-        String[] requestLineParts = this.requestLine.split("\\s+");
-        this.type = requestLineParts[0];
-        parseURL(requestLineParts[1]);
-
-        // Parse headers and possibly a body if it's a POST request
-        for (int i = 1; i < requestByLines.length; i++) {
-            String header = requestByLines[i];
-            if (!header.trim().isEmpty()) {
-                if (!header.matches("^[a-zA-Z0-9\\-]+: .+$")) {
-                    throw new BadRequestException("Invalid header line: " + header);
-                } else {
-                    parseHeaderLine(header);
-                }
-            } else {
-                if (this.contentLength > 0 && ("GET".equalsIgnoreCase(this.type) || "HEAD".equalsIgnoreCase(this.type))) {
-                    throw new BadRequestException("Request of type " + this.type + " cannot have a body");
+    // Where the body goes while it's read: form posts into the parameters, TRACE into a copy, anything else nowhere
+    BodyConsumer newBodyConsumer() {
+        if ("POST".equalsIgnoreCase(this.type) && isFormContent()) {
+            return new FormParser(this.parameters);
+        }
+        if ("TRACE".equalsIgnoreCase(this.type)) {
+            this.body = new ByteArrayOutputStream();
+            return new BodyConsumer() {
+                @Override
+                public void write(byte[] buffer, int offset, int length) {
+                    body.write(buffer, offset, length);
                 }
-                // Handle POST body, assuming the body directly follows an empty line after headers
-                if ("POST".equalsIgnoreCase(type) && this.contentLength > 0 && i < requestByLines.length - 1) {
-                    parseParameters(requestByLines[i + 1]);
+
+                @Override
+                public void finish() {
                 }
-                break;
-            }
+            };
         }
+        return BodyConsumer.DISCARD;
     }
 
-    private void parseURL(String url){
-        String[] urlParts = url.split("\\?", 2);
+    void setBodyLength(long bodyLength) {
+        this.bodyLength = bodyLength;
+    }
 
-        // Ignore any ../ in the URL - don't allow directory traversal outside the root directory
-        this.requestedPage = urlParts[0].replaceAll("\\.\\./", "");
+    void setProxyExchange(ProxyExchange proxyExchange) {
+        this.proxyExchange = proxyExchange;
+    }
 
-        // If there are parameters in the URL, parse them
-        if (urlParts.length > 1) {
-            parseParameters(urlParts[1]);
-        }
+    public ProxyExchange getProxyExchange() {
+        return this.proxyExchange;
     }
 
-    private void parseHeaderLine(String line) throws BadRequestException {
-        String[] header = line.split(": ", 2);
-        if (header.length == 2) {
-            String headerName = header[0].toLowerCase();
-            String headerValue = header[1];
-            switch (headerName) {
-                case "content-length" -> this.contentLength = Integer.parseInt(headerValue);
-                case "chunked" -> this.chunkedResponse = "yes".equalsIgnoreCase(headerValue);
-            }
-        } else {
-            throw new BadRequestException("Invalid header: " + line);
+    private boolean isFormContent() {
+        String contentType = this.headers.get("content-type");
+        return contentType == null || contentType.toLowerCase().startsWith("application/x-www-form-urlencoded");
+    }
+
+    private void parseURL(String url) {
+        int queryStart = url.indexOf('?');
+        String path = queryStart == -1 ? url : url.substring(0, queryStart);
+
+        // No need to strip ../ - only files indexed under the document root can be served
+        this.requestedPage = path;
+
+        // If there are parameters in the URL, parse them
+        if (queryStart != -1) {
+            parseParameters(url.substring(queryStart + 1));
         }
     }
 
     private void parseParameters(String parametersLine) {
-        String[] pairs = parametersLine.split("&");
-        for (String pair : pairs) {
-            String[] param = pair.split("=", 2);
-            if (param.length == 2) {
-                this.parameters.put(param[0], param[1]);
-            } else if (param.length == 1){
-                this.parameters.put(param[0],"");
+        int pairStart = 0;
+        while (pairStart <= parametersLine.length()) {
+            int pairEnd = parametersLine.indexOf('&', pairStart);
+            if (pairEnd == -1) {
+                pairEnd = parametersLine.length();
             }
+            int separator = parametersLine.indexOf('=', pairStart);
+            if (separator != -1 && separator < pairEnd) {
+                this.parameters.put(parametersLine.substring(pairStart, separator), parametersLine.substring(separator + 1, pairEnd));
+            } else if (pairEnd > pairStart) {
+                this.parameters.put(parametersLine.substring(pairStart, pairEnd), "");
+            }
+            pairStart = pairEnd + 1;
         }
     }
 
@@ -139,6 +181,11 @@ public class HTTPRequest {
         return this.type;
     }
 
+    // The request target as sent, including the query string
+    public String getTarget() {
+        return this.target;
+    }
+
     public String getRequestedPage() {
         return this.requestedPage;
     }
@@ -147,15 +194,50 @@ public class HTTPRequest {
         return this.parameters;
     }
 
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(this.headers);
+    }
+
+    public String getHeader(String name) {
+        return this.headers.get(name.toLowerCase());
+    }
+
+    // -1 for a chunked body
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    // Body bytes received, without chunk framing
+    public long getBodyLength() {
+        return this.bodyLength;
+    }
+
     public String getRawRequest() {
-        return this.rawFullRequest.toString();
+        return getRawHeaders() + (this.body == null ? "" : this.body.toString(StandardCharsets.ISO_8859_1));
     }
 
     public String getRawHeaders() {
-        return this.rawHeaders.toString();
+        return this.rawHeaders == null ? "" : new String(this.rawHeaders, 0, this.rawHeadersLength, StandardCharsets.ISO_8859_1);
     }
 
     public boolean isChunkedResponse() {
         return this.chunkedResponse;
     }
+
+    public String getHttpVersion() {
+        return this.httpVersion;
+    }
+
+    // "PRI * HTTP/2.0", the start of the prior knowledge HTTP/2 preface
+    public boolean isHttp2Preface() {
+        return "PRI".equals(this.type) && "HTTP/2.0".equals(this.httpVersion);
+    }
+
+    public boolean isKeepAlive() {
+        // HTTP/1.1 connections are persistent unless the client asks otherwise, HTTP/1.0 ones only on request
+        if ("close".equals(this.connection)) {
+            return false;
+        }
+        return "keep-alive".equals(this.connection) || "HTTP/1.1".equals(this.httpVersion);
+    }
 }
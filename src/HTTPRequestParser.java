@@ -0,0 +1,283 @@
+import java.nio.charset.StandardCharsets;
+
+// Incremental parser working directly on the connection's byte buffer. It can be called again whenever more
+// bytes arrive and only scans the new ones. Strings are created only for the values HTTPRequest exposes.
+public class HTTPRequestParser {
+    private static final int MAX_HEADERS_SIZE = 64 * 1024;
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "HEAD", "TRACE", "PUT", "DELETE", "OPTIONS", "CONNECT", "PATCH"};
+    private static final String[] KNOWN_HEADER_NAMES = {"host", "connection", "content-length", "content-type", "chunked",
+            "transfer-encoding", "user-agent", "accept", "accept-encoding", "accept-language", "cache-control", "cookie",
+            "referer", "upgrade", "if-none-match", "if-modified-since", "range", "if-range", "expect", "keep-alive"};
+    private static final byte[][] KNOWN_METHOD_BYTES = toBytes(KNOWN_METHODS);
+    private static final byte[][] KNOWN_HEADER_NAME_BYTES = toBytes(KNOWN_HEADER_NAMES);
+
+    private enum State { REQUEST_LINE, HEADER_LINE, BODY, COMPLETE }
+
+    private State state;
+    private HTTPRequest request;
+    // Offsets are relative to the start of the request in the buffer, so the buffer may be grown between calls
+    private int scanned;
+    private int lineStart;
+    private int requestStart;
+    private final long maxBodySize;
+    private RequestBodyDecoder bodyDecoder;
+    // Bytes at the start of the buffer the last parse() call is done with
+    private int consumed;
+    private long parseNanos;
+    // Forwards the requests under its routes as soon as their headers are parsed, null where they aren't forwarded
+    private final ReverseProxy proxy;
+    private final String clientHost;
+    private final boolean secure;
+
+    public HTTPRequestParser(long maxBodySize) {
+        this(maxBodySize, null, null, false);
+    }
+
+    public HTTPRequestParser(long maxBodySize, ReverseProxy proxy, String clientHost, boolean secure) {
+        this.maxBodySize = maxBodySize;
+        this.proxy = proxy;
+        this.clientHost = clientHost;
+        this.secure = secure;
+        reset();
+    }
+
+    // The previous request is recycled for the next one unless it was detached, it mustn't be used anymore
+    public void reset() {
+        this.state = State.REQUEST_LINE;
+        if (this.request == null) {
+            this.request = new HTTPRequest();
+        } else {
+            this.request.recycle();
+        }
+        this.scanned = 0;
+        this.lineStart = 0;
+        this.requestStart = 0;
+        this.bodyDecoder = null;
+        this.consumed = 0;
+        this.parseNanos = 0;
+    }
+
+    // Returns true once the whole request (headers and body) was parsed. After every call the caller drops the
+    // getConsumed() bytes at the start of buffer[start, end): the headers once they're complete, and the body as it's
+    // decoded, so a body streams through the buffer instead of piling up in it.
+    public boolean parse(byte[] buffer, int start, int end) throws BadRequestException {
+        long started = System.nanoTime();
+        try {
+            return parseBuffered(buffer, start, end);
+        } finally {
+            this.parseNanos += System.nanoTime() - started;
+        }
+    }
+
+    // Time spent in parse() for the current request, not counting the waits for more bytes in between
+    public long getParseNanos() {
+        return this.parseNanos;
+    }
+
+    private boolean parseBuffered(byte[] buffer, int start, int end) throws BadRequestException {
+        this.consumed = 0;
+        while (this.state != State.COMPLETE) {
+            if (this.state == State.BODY) {
+                this.consumed += this.bodyDecoder.decode(buffer, start + this.consumed, end);
+                this.request.setBodyLength(this.bodyDecoder.getReceived());
+                if (!this.bodyDecoder.isComplete()) {
+                    return false;
+                }
+                this.state = State.COMPLETE;
+                break;
+            }
+
+            int lineEnd = findLineEnd(buffer, start, end);
+            if (lineEnd == -1) {
+                if (end - start >= MAX_HEADERS_SIZE) {
+                    throw new BadRequestException("Request headers are too large", 431);
+                }
+                return false;
+            }
+            // Lines end with CRLF, a bare LF is tolerated
+            int contentEnd = lineEnd > this.lineStart && buffer[start + lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+
+            if (this.state == State.REQUEST_LINE) {
+                if (contentEnd == this.lineStart) {
+                    // Empty lines before the request line are ignored
+                    this.requestStart = lineEnd + 1;
+                } else {
+                    parseRequestLine(buffer, start + this.lineStart, start + contentEnd);
+                    this.state = State.HEADER_LINE;
+                }
+            } else if (contentEnd == this.lineStart) {
+                // An empty line ends the headers, from here on the parser is done with everything it decodes
+                int headersEnd = lineEnd + 1;
+                this.request.endHeaders(buffer, start + this.requestStart, start + headersEnd);
+                BodyConsumer bodyConsumer = this.proxy != null ? this.proxy.forward(this.request, this.clientHost, this.secure, false) : null;
+                if (bodyConsumer == null) {
+                    bodyConsumer = this.request.newBodyConsumer();
+                }
+                this.bodyDecoder = this.request.isChunkedBody()
+                        ? RequestBodyDecoder.forChunked(this.maxBodySize, bodyConsumer)
+                        : RequestBodyDecoder.forContentLength(this.request.getContentLength(), this.maxBodySize, bodyConsumer);
+                this.consumed = headersEnd;
+                this.state = State.BODY;
+            } else {
+                parseHeaderLine(buffer, start + this.lineStart, start + contentEnd);
+            }
+            this.lineStart = lineEnd + 1;
+        }
+        return true;
+    }
+
+    public HTTPRequest getRequest() {
+        return this.request;
+    }
+
+    // The request was parsed to the end, the next parse() needs a reset() first
+    public boolean isComplete() {
+        return this.state == State.COMPLETE;
+    }
+
+    // Keeps the current request from being recycled by the next reset(), for a caller holding on to it
+    public HTTPRequest detachRequest() {
+        HTTPRequest request = this.request;
+        this.request = null;
+        return request;
+    }
+
+    public boolean isReadingBody() {
+        return this.state == State.BODY;
+    }
+
+    public int getConsumed() {
+        return this.consumed;
+    }
+
+    private int findLineEnd(byte[] buffer, int start, int end) {
+        for (int i = start + this.scanned; i < end; i++) {
+            if (buffer[i] == '\n') {
+                this.scanned = i - start + 1;
+                return i - start;
+            }
+        }
+        this.scanned = end - start;
+        return -1;
+    }
+
+    // <method> SP <target starting with '/'> SP HTTP/1.0 or HTTP/1.1, or the HTTP/2 preface. The preface is read as
+    // a request without headers, so the reader stops right where the HTTP/2 frames begin.
+    private void parseRequestLine(byte[] buffer, int from, int to) throws BadRequestException {
+        if (matches(buffer, from, to, "PRI * HTTP/2.0")) {
+            this.request.setRequestLine("PRI", "*", "HTTP/2.0");
+            return;
+        }
+        int methodEnd = indexOf(buffer, from, to, (byte) ' ');
+        int versionStart = lastIndexOf(buffer, from, to, (byte) ' ') + 1;
+        if (methodEnd <= from || versionStart <= methodEnd + 1 || buffer[methodEnd + 1] != '/') {
+            throw new BadRequestException("Invalid request line: " + new String(buffer, from, to - from, StandardCharsets.ISO_8859_1));
+        }
+
+        String httpVersion;
+        if (matches(buffer, versionStart, to, "HTTP/1.1")) {
+            httpVersion = "HTTP/1.1";
+        } else if (matches(buffer, versionStart, to, "HTTP/1.0")) {
+            httpVersion = "HTTP/1.0";
+        } else {
+            throw new BadRequestException("Invalid request line: " + new String(buffer, from, to - from, StandardCharsets.ISO_8859_1));
+        }
+
+        String method = lookup(KNOWN_METHODS, KNOWN_METHOD_BYTES, buffer, from, methodEnd, false);
+        if (method == null) {
+            method = new String(buffer, from, methodEnd - from, StandardCharsets.ISO_8859_1);
+        }
+        String target = new String(buffer, methodEnd + 1, versionStart - 1 - (methodEnd + 1), StandardCharsets.ISO_8859_1);
+        this.request.setRequestLine(method, target, httpVersion);
+    }
+
+    // <name made of letters, digits and '-'> ':' OWS <value> OWS
+    private void parseHeaderLine(byte[] buffer, int from, int to) throws BadRequestException {
+        int nameEnd = from;
+        while (nameEnd < to && isHeaderNameByte(buffer[nameEnd])) {
+            nameEnd++;
+        }
+        if (nameEnd == from || nameEnd == to || buffer[nameEnd] != ':') {
+            throw new BadRequestException("Invalid header line: " + new String(buffer, from, to - from, StandardCharsets.ISO_8859_1));
+        }
+
+        int valueStart = nameEnd + 1;
+        int valueEnd = to;
+        while (valueStart < valueEnd && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        String name = lookup(KNOWN_HEADER_NAMES, KNOWN_HEADER_NAME_BYTES, buffer, from, nameEnd, true);
+        if (name == null) {
+            name = new String(buffer, from, nameEnd - from, StandardCharsets.ISO_8859_1).toLowerCase();
+        }
+        this.request.addHeader(name, new String(buffer, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1));
+    }
+
+    private static boolean isHeaderNameByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-';
+    }
+
+    // Returns the constant matching buffer[from, to) so common methods and header names don't allocate
+    private static String lookup(String[] names, byte[][] nameBytes, byte[] buffer, int from, int to, boolean ignoreCase) {
+        for (int i = 0; i < nameBytes.length; i++) {
+            byte[] candidate = nameBytes[i];
+            if (candidate.length != to - from) {
+                continue;
+            }
+            int j = 0;
+            while (j < candidate.length && (ignoreCase ? toLowerCase(buffer[from + j]) : buffer[from + j]) == candidate[j]) {
+                j++;
+            }
+            if (j == candidate.length) {
+                return names[i];
+            }
+        }
+        return null;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean matches(byte[] buffer, int from, int to, String expected) {
+        if (to - from != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (buffer[from + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] buffer, int from, int to, byte b) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return from - 1;
+    }
+
+    private static byte[][] toBytes(String[] names) {
+        byte[][] bytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            bytes[i] = names[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+// Reads requests from a blocking stream into one reusable buffer, bytes of pipelined requests stay buffered.
+// The buffer only ever holds headers, request bodies pass through it.
+public class HTTPRequestReader {
+    private final InputStream inFromClient;
+    private final HTTPRequestParser parser;
+    // Null for a buffer that isn't pooled
+    private final BufferPool pool;
+    private byte[] buffer;
+    private int start;
+    private int end;
+    // Read by the server's thread when it drains, a started request has to be finished
+    private volatile boolean requestStarted;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    public HTTPRequestReader(InputStream inFromClient, long maxBodySize) {
+        this(inFromClient, maxBodySize, null, null, null, false);
+    }
+
+    // Requests under the proxy's routes are forwarded while they're read, the proxy may be null. Secure when the client
+    // is connected over TLS.
+    public HTTPRequestReader(InputStream inFromClient, long maxBodySize, BufferPool pool, ReverseProxy proxy, String clientHost, boolean secure) {
+        this.inFromClient = inFromClient;
+        this.parser = new HTTPRequestParser(maxBodySize, proxy, clientHost, secure);
+        this.pool = pool;
+        this.buffer = pool != null ? pool.acquire(INITIAL_BUFFER_SIZE) : new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    // Returns the buffer to the pool once the connection is closed, the reader can't be used anymore
+    public void release() {
+        if (this.pool != null && this.buffer != null) {
+            this.pool.release(this.buffer);
+        }
+        this.buffer = null;
+    }
+
+    // Returns null if the connection was closed or went idle before a new request started. The request returned
+    // before is recycled for the new one.
+    public HTTPRequest readRequest() throws IOException, BadRequestException {
+        this.parser.reset();
+        // Pipelined bytes are already part of the next request
+        this.requestStarted = this.start < this.end;
+        while (true) {
+            boolean complete = this.parser.parse(this.buffer, this.start, this.end);
+            this.start += this.parser.getConsumed();
+            if (this.start == this.end) {
+                this.start = 0;
+                this.end = 0;
+            }
+            if (complete) {
+                return this.parser.getRequest();
+            }
+            if (this.end == this.buffer.length) {
+                makeRoom();
+            }
+            int read;
+            try {
+                read = this.inFromClient.read(this.buffer, this.end, this.buffer.length - this.end);
+            } catch (SocketTimeoutException e) {
+                if (this.start == this.end && !this.parser.isReadingBody()) {
+                    // Idle connection - no request was started, nothing to answer
+                    return null;
+                }
+                if (this.parser.isReadingBody()) {
+                    throw new BadRequestException("Make sure Content-Length header value isn't greater the actual content length and try again.");
+                }
+                throw e;
+            }
+            if (read == -1) {
+                if (this.start == this.end && !this.parser.isReadingBody()) {
+                    // Client closed the connection between requests
+                    return null;
+                }
+                throw new BadRequestException(this.parser.isReadingBody() ? "Request body ended early" : "Request is missing final CRLF");
+            }
+            this.end += read;
+            this.requestStarted = true;
+        }
+    }
+
+    // Whether any of the request being read has arrived yet
+    public boolean isRequestStarted() {
+        return this.requestStarted;
+    }
+
+    public long getParseNanos() {
+        return this.parser.getParseNanos();
+    }
+
+    // Bytes read past the last request, handed over when the connection switches to HTTP/2
+    public byte[] takeBuffered() {
+        byte[] buffered = Arrays.copyOfRange(this.buffer, this.start, this.end);
+        this.start = 0;
+        this.end = 0;
+        return buffered;
+    }
+
+    // The last request stays valid after the next readRequest(), which otherwise recycles it
+    public HTTPRequest detachRequest() {
+        return this.parser.detachRequest();
+    }
+
+    // The request being read, possibly incomplete - used to answer requests that failed to parse
+    public HTTPRequest getCurrentRequest() {
+        return this.parser.getRequest();
+    }
+
+    private void makeRoom() {
+        if (this.start > 0) {
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+            this.end -= this.start;
+            this.start = 0;
+        } else {
+            byte[] grown = this.pool != null ? this.pool.acquire(this.buffer.length * 2) : new byte[this.buffer.length * 2];
+            System.arraycopy(this.buffer, 0, grown, 0, this.end);
+            if (this.pool != null) {
+                this.pool.release(this.buffer);
+            }
+            this.buffer = grown;
+        }
+    }
+}
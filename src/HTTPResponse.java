@@ -1,20 +1,58 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class HTTPResponse {
-    private final Map<String, String> headers = new HashMap<>();
+    // Status lines are encoded once per status code, indexed by the code
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    private static final byte[] CRLF = {'\r', '\n'};
+    // Headers are sent in the order they were added
+    private final Map<String, String> headers = new LinkedHashMap<>();
     private byte[] body;
-    private String statusLine;
+    private int bodyOffset;
+    private int bodyLength;
+    private FileRegion fileBody;
+    private BodyProducer bodyProducer;
+    private long producerLength = -1;
+    private int statusCode;
     private boolean chunkedResponse;
-    private static final String CRLF = "\r\n";
-    private static final int CHUNK_SIZE = 500;
+    // HTTP/1.0 clients don't know the chunked coding, a body of unknown length ends when the connection does
+    private boolean chunkingSupported = true;
+    private boolean closeDelimited;
+    private static final int DEFAULT_CHUNK_SIZE = 8192;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
     private boolean isHeadResponse = false;
 
     public HTTPResponse() {}
 
+    // Clears everything for the next response on the same connection, the header map keeps its storage
+    public void reset() {
+        this.headers.clear();
+        this.body = null;
+        this.bodyOffset = 0;
+        this.bodyLength = 0;
+        this.fileBody = null;
+        this.bodyProducer = null;
+        this.producerLength = -1;
+        this.statusCode = 0;
+        this.chunkedResponse = false;
+        this.chunkingSupported = true;
+        this.closeDelimited = false;
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.isHeadResponse = false;
+    }
+
+    // Set before the body, from the request's version
+    public void setChunkingSupported(boolean chunkingSupported) {
+        this.chunkingSupported = chunkingSupported;
+    }
+
     public void setChunkedResponse(boolean chunkedResponse) {
-        this.chunkedResponse = chunkedResponse;
-        if (chunkedResponse) {
+        this.chunkedResponse = chunkedResponse && this.chunkingSupported;
+        if (this.chunkedResponse) {
             addHeader("Transfer-Encoding", "chunked");
         }
     }
@@ -24,74 +62,264 @@ public class HTTPResponse {
     }
 
     public void setStatus(int statusCode) {
-        String statusMessage = getStatusMessage(statusCode);
-        this.statusLine = "HTTP/1.1 " + statusCode + " " + statusMessage;
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return this.statusCode;
     }
 
     public void addHeader(String key, String value) {
         headers.put(key, value);
     }
 
+    // Adds another field of the same name, for headers that can't be combined into one value such as Set-Cookie.
+    // The values are kept on separate lines of one map entry, and sent as separate fields.
+    public void addHeaderValue(String key, String value) {
+        headers.merge(key, value, (first, second) -> first + "\n" + second);
+    }
+
+    // The headers as added, without the status line and Date which are written on sending
+    public Map<String, String> getHeaderFields() {
+        return Collections.unmodifiableMap(this.headers);
+    }
+
     public void setBody(byte[] body) {
+        setBody(body, String.valueOf(body.length));
+    }
+
+    public void setBody(byte[] body, String contentLength) {
+        setBody(body, 0, body.length, contentLength);
+    }
+
+    // A slice of a shared array (such as a cached file), sent without copying it
+    public void setBody(byte[] body, int offset, int length) {
+        setBody(body, offset, length, String.valueOf(length));
+    }
+
+    private void setBody(byte[] body, int offset, int length, String contentLength) {
         this.body = body;
+        this.bodyOffset = offset;
+        this.bodyLength = length;
+        if (!this.chunkedResponse) {
+            addHeader("Content-Length", contentLength);
+        }
+    }
+
+    // The body is streamed from the file when sent instead of being loaded into memory
+    public void setBody(FileRegion fileBody, String contentLength) {
+        this.fileBody = fileBody;
         if (!this.chunkedResponse) {
-            addHeader("Content-Length", String.valueOf(body.length));
+            addHeader("Content-Length", contentLength);
         }
     }
 
-    public void send(DataOutputStream outToClient) throws IOException {
-        outToClient.writeBytes(this.getHeaders() + "\r\n");
-        if (body != null && !isHeadResponse) {
-            if (this.chunkedResponse) {
-                // Handle chunked response
-                int offset = 0;
-                while (offset < body.length) {
-                    int length = Math.min(CHUNK_SIZE, body.length - offset);
-                    outToClient.writeBytes(Integer.toHexString(length) + CRLF);
-                    outToClient.write(body, offset, length);
-                    outToClient.writeBytes(CRLF);
-                    offset += length;
-                }
-                outToClient.writeBytes("0" + CRLF + CRLF);
-            } else {
-                // Handle regular response
-                outToClient.write(body);
+    // Sent chunked since the length is only known once the producer is done, or unframed up to the connection's close
+    public void setBody(BodyProducer bodyProducer) {
+        this.bodyProducer = bodyProducer;
+        if (!this.chunkingSupported) {
+            this.closeDelimited = true;
+        } else if (!this.chunkedResponse) {
+            setChunkedResponse(true);
+        }
+    }
+
+    // For producers that know up front exactly how many bytes they will write
+    public void setBody(BodyProducer bodyProducer, long contentLength) {
+        this.bodyProducer = bodyProducer;
+        this.producerLength = contentLength;
+        if (!this.chunkedResponse) {
+            addHeader("Content-Length", String.valueOf(contentLength));
+        }
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public FileRegion getFileBody() {
+        return this.fileBody;
+    }
+
+    public BodyProducer getBodyProducer() {
+        return this.bodyProducer;
+    }
+
+    // Number of body bytes sent (without chunk framing), -1 when only known after a producer ran
+    public long getBodyLength() {
+        if (this.isHeadResponse) {
+            return 0;
+        } else if (this.body != null) {
+            return this.bodyLength;
+        } else if (this.fileBody != null) {
+            return this.fileBody.getCount();
+        } else if (this.bodyProducer != null) {
+            return this.producerLength;
+        }
+        return 0;
+    }
+
+    public boolean isChunkedResponse() {
+        return this.chunkedResponse;
+    }
+
+    public boolean isHeadResponse() {
+        return this.isHeadResponse;
+    }
+
+    // The connection has to be closed after the body, that's how the client knows where it ends
+    public boolean isCloseDelimited() {
+        return this.closeDelimited && hasBodyToSend();
+    }
+
+    // Blocking engine: the headers and a byte[] body leave in one gathering write, a chunked body's first chunk goes out
+    // together with the headers and a file body is sent with sendfile right after them
+    public void send(ResponseBuffer buffer, GatheringByteChannel channel) throws IOException {
+        buffer.reset();
+        writeHeaders(buffer);
+        if (!hasBodyToSend()) {
+            buffer.writeTo(channel);
+        } else if (this.chunkedResponse) {
+            // The body is encoded while it's produced, never buffered as a whole
+            ChunkedOutputStream chunkedOut = new ChunkedOutputStream(buffer.streamTo(channel), this.chunkSize);
+            writeBody(chunkedOut);
+            chunkedOut.finish();
+        } else if (this.fileBody != null && channel instanceof StreamChannel) {
+            // No sendfile through TLS, the file is copied with the headers in front of its first piece
+            OutputStream out = buffer.streamTo(channel);
+            this.fileBody.writeTo(out);
+            out.flush();
+        } else if (this.fileBody != null) {
+            buffer.writeTo(channel);
+            this.fileBody.transferTo(channel);
+        } else if (this.bodyProducer != null) {
+            OutputStream out = buffer.streamTo(channel);
+            this.bodyProducer.writeTo(out);
+            out.flush();
+        } else {
+            buffer.writeTo(channel, ByteBuffer.wrap(this.body, this.bodyOffset, this.bodyLength));
+        }
+    }
+
+    // Non-blocking engine: serializes everything but a file or producer body, which the connection sends itself as
+    // the socket accepts it. Returns the buffers to write in order, a byte[] body is not copied into the response buffer.
+    public ByteBuffer[] serialize(ResponseBuffer buffer) throws IOException {
+        buffer.reset();
+        writeHeaders(buffer);
+        if (!hasBodyToSend() || this.fileBody != null || this.bodyProducer != null) {
+            return new ByteBuffer[]{buffer.toByteBuffer()};
+        }
+        if (this.chunkedResponse) {
+            ChunkedOutputStream chunkedOut = new ChunkedOutputStream(buffer, this.chunkSize);
+            writeBody(chunkedOut);
+            chunkedOut.finish();
+            return new ByteBuffer[]{buffer.toByteBuffer()};
+        }
+        return new ByteBuffer[]{buffer.toByteBuffer(), ByteBuffer.wrap(this.body, this.bodyOffset, this.bodyLength)};
+    }
+
+    // Status line and headers, followed by the empty line ending them
+    public void writeHeaders(ResponseBuffer buffer) {
+        buffer.write(statusLine(this.statusCode));
+        buffer.write(HTTPDate.headerLine());
+        for (Map.Entry<String, String> header : this.headers.entrySet()) {
+            String value = header.getValue();
+            int lineStart = 0;
+            int lineEnd;
+            while ((lineEnd = value.indexOf('\n', lineStart)) != -1) {
+                writeHeader(buffer, header.getKey(), value.substring(lineStart, lineEnd));
+                lineStart = lineEnd + 1;
             }
+            writeHeader(buffer, header.getKey(), lineStart == 0 ? value : value.substring(lineStart));
         }
-        outToClient.flush();
+        buffer.write(CRLF);
     }
 
-    private String getStatusMessage(int statusCode) {
+    private static void writeHeader(ResponseBuffer buffer, String name, String value) {
+        buffer.writeLatin1(name);
+        buffer.write(HEADER_SEPARATOR);
+        buffer.writeLatin1(value);
+        buffer.write(CRLF);
+    }
+
+    public boolean hasBodyToSend() {
+        return !this.isHeadResponse && (this.body != null || this.fileBody != null || this.bodyProducer != null);
+    }
+
+    // Only the body bytes, without chunk framing - also for HTTP/2, which frames the body itself
+    public void writeBody(OutputStream out) throws IOException {
+        if (this.fileBody != null) {
+            this.fileBody.writeTo(out);
+        } else if (this.bodyProducer != null) {
+            this.bodyProducer.writeTo(out);
+        } else {
+            out.write(this.body, this.bodyOffset, this.bodyLength);
+        }
+    }
+
+    private static byte[] statusLine(int statusCode) {
+        boolean cacheable = statusCode >= 0 && statusCode < STATUS_LINES.length;
+        byte[] statusLine = cacheable ? STATUS_LINES[statusCode] : null;
+        if (statusLine == null) {
+            statusLine = ("HTTP/1.1 " + statusCode + " " + getStatusMessage(statusCode) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            if (cacheable) {
+                STATUS_LINES[statusCode] = statusLine;
+            }
+        }
+        return statusLine;
+    }
+
+    private static String getStatusMessage(int statusCode) {
         return switch (statusCode) {
             case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 303 -> "See Other";
+            case 304 -> "Not Modified";
+            case 307 -> "Temporary Redirect";
+            case 308 -> "Permanent Redirect";
             case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
             case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 409 -> "Conflict";
+            case 429 -> "Too Many Requests";
+            case 413 -> "Content Too Large";
+            case 416 -> "Range Not Satisfiable";
+            case 431 -> "Request Header Fields Too Large";
             case 501 -> "Not Implemented";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            case 505 -> "HTTP Version Not Supported";
             case 500 -> "Internal Server Error";
             default -> "Unknown Status";
         };
     }
 
+    // Readable form of what writeHeaders sends, for logging
     public String getHeaders() {
-        StringBuilder responseHeaders = new StringBuilder(this.statusLine).append("\r\n");
+        StringBuilder responseHeaders = new StringBuilder("HTTP/1.1 ").append(this.statusCode).append(' ').append(getStatusMessage(this.statusCode)).append("\r\n");
+        responseHeaders.append("Date: ").append(HTTPDate.now()).append("\r\n");
         for (Map.Entry<String, String> header : headers.entrySet()) {
-            String headerLine = header.getKey() + ": " + header.getValue() + "\r\n";
-            responseHeaders.append(headerLine);
+            responseHeaders.append(header.getKey()).append(": ").append(header.getValue().replace("\n", "\r\n" + header.getKey() + ": ")).append("\r\n");
         }
         return responseHeaders.toString();
     }
 
+    // Looked up once per indexed file version, never per request
     public static ContentType getContentTypeByFileName(String fileName) {
-        if (fileName.endsWith(".html")) {
-            return ContentType.HTML;
-        } else if (fileName.matches(".*\\.(jpg|png|gif|bmp)$")) {
-            return ContentType.IMAGE;
-        } else if (fileName.endsWith(".ico")) {
-            return ContentType.ICON;
-        } else {
-            return ContentType.OCTET_STREAM;
-        }
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1);
+        return switch (extension) {
+            case "html" -> ContentType.HTML;
+            case "jpg", "png", "gif", "bmp" -> ContentType.IMAGE;
+            case "ico" -> ContentType.ICON;
+            default -> ContentType.OCTET_STREAM;
+        };
     }
 }
-
-
@@ -0,0 +1,158 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Decodes HPACK header blocks (RFC 7541). One decoder per connection, its dynamic table carries over from one header
+// block to the next so blocks have to be decoded in the order they arrive.
+public class HpackDecoder {
+    // Index 1 is STATIC_TABLE[0]
+    static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""}, {"date", ""},
+            {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""},
+            {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""},
+            {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""},
+            {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+            {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}};
+    // Every table entry counts its name and value plus 32 bytes of overhead
+    static final int ENTRY_OVERHEAD = 32;
+
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+    // Newest entry last, it has index STATIC_TABLE.length + 1
+    private final List<String[]> dynamicTable = new ArrayList<>();
+    private int tableSize;
+    private int tableSizeLimit;
+    private byte[] block;
+    private int position;
+    private int end;
+
+    public HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+        this.tableSizeLimit = maxTableSize;
+    }
+
+    // Returns the fields of the block in order, as name, value, name, value...
+    public List<String> decode(byte[] block, int offset, int length) throws Http2Exception {
+        this.block = block;
+        this.position = offset;
+        this.end = offset + length;
+        List<String> fields = new ArrayList<>();
+        int headerListSize = 0;
+        while (this.position < this.end) {
+            int b = block[this.position] & 0xff;
+            String name;
+            String value;
+            if ((b & 0x80) != 0) {
+                // Indexed field
+                String[] field = field(readInteger(7));
+                name = field[0];
+                value = field[1];
+            } else if ((b & 0x40) != 0) {
+                // Literal added to the dynamic table
+                name = readName(6);
+                value = readString();
+                add(name, value);
+            } else if ((b & 0x20) != 0) {
+                // Dynamic table size update, only allowed before the first field
+                int size = readInteger(5);
+                if (!fields.isEmpty() || size > this.maxTableSize) {
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid dynamic table size update");
+                }
+                this.tableSizeLimit = size;
+                evict(0);
+                continue;
+            } else {
+                // Literal not added to the table, either without indexing or never indexed
+                name = readName(4);
+                value = readString();
+            }
+            headerListSize += name.length() + value.length() + ENTRY_OVERHEAD;
+            if (headerListSize > this.maxHeaderListSize) {
+                throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header list is larger than " + this.maxHeaderListSize);
+            }
+            fields.add(name);
+            fields.add(value);
+        }
+        this.block = null;
+        return fields;
+    }
+
+    private String[] field(int index) throws Http2Exception {
+        if (index > 0 && index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1];
+        }
+        int dynamicIndex = index - STATIC_TABLE.length - 1;
+        if (index <= 0 || dynamicIndex >= this.dynamicTable.size()) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header table index " + index);
+        }
+        return this.dynamicTable.get(this.dynamicTable.size() - 1 - dynamicIndex);
+    }
+
+    // A name index in the prefix, or 0 followed by the name as a string
+    private String readName(int prefixBits) throws Http2Exception {
+        int index = readInteger(prefixBits);
+        return index == 0 ? readString() : field(index)[0];
+    }
+
+    private void add(String name, String value) {
+        int size = name.length() + value.length() + ENTRY_OVERHEAD;
+        evict(size);
+        // An entry larger than the whole table empties it and isn't added
+        if (size <= this.tableSizeLimit) {
+            this.dynamicTable.add(new String[]{name, value});
+            this.tableSize += size;
+        }
+    }
+
+    // Drops the oldest entries until there is room for the given size
+    private void evict(int room) {
+        while (!this.dynamicTable.isEmpty() && this.tableSize + room > this.tableSizeLimit) {
+            String[] oldest = this.dynamicTable.remove(0);
+            this.tableSize -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    // An integer filling the low prefixBits of the current byte, continued in 7 bit groups once the prefix is all ones
+    private int readInteger(int prefixBits) throws Http2Exception {
+        int prefixMax = (1 << prefixBits) - 1;
+        int value = this.block[this.position++] & prefixMax;
+        if (value < prefixMax) {
+            return value;
+        }
+        for (int shift = 0; shift <= 21; shift += 7) {
+            if (this.position == this.end) {
+                break;
+            }
+            int b = this.block[this.position++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid integer in header block");
+    }
+
+    private String readString() throws Http2Exception {
+        if (this.position == this.end) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header block ends within a field");
+        }
+        boolean huffman = (this.block[this.position] & 0x80) != 0;
+        int length = readInteger(7);
+        if (length > this.end - this.position) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "String is longer than the header block");
+        }
+        String value = huffman
+                ? Huffman.decode(this.block, this.position, length)
+                : new String(this.block, this.position, length, StandardCharsets.ISO_8859_1);
+        this.position += length;
+        return value;
+    }
+}
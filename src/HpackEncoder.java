@@ -0,0 +1,123 @@
+import java.util.*;
+
+// Encodes response header blocks with HPACK. Fields that repeat across responses (content types and the like) are
+// added to the dynamic table and sent as a single index from then on, per-response values such as dates and ETags are
+// sent as literals so they don't push the useful entries out. One encoder per connection, blocks must be sent in the
+// order they are encoded.
+public class HpackEncoder {
+    private static final Set<String> INDEXED_NAMES = Set.of("content-type", "accept-ranges", "vary", "content-encoding", "cache-control");
+    private static final int MAX_TABLE_SIZE = 4096;
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = HpackDecoder.STATIC_TABLE.length - 1; i >= 0; i--) {
+            String[] field = HpackDecoder.STATIC_TABLE[i];
+            STATIC_NAMES.put(field[0], i + 1);
+            if (!field[1].isEmpty()) {
+                STATIC_FIELDS.put(field[0] + '\0' + field[1], i + 1);
+            }
+        }
+    }
+
+    // Oldest entry first, each with the number it was inserted as
+    private final ArrayDeque<Entry> dynamicTable = new ArrayDeque<>();
+    private final Map<String, Long> dynamicFields = new HashMap<>();
+    private long insertions;
+    private int tableSize;
+    private int maxTableSize = MAX_TABLE_SIZE;
+    // Size updates the decoder has to be told about at the start of the next block
+    private int smallestSizeUpdate = -1;
+
+    private record Entry(String key, int size, long number) {}
+
+    // The peer's SETTINGS_HEADER_TABLE_SIZE, the encoder never uses more than its own maximum
+    public void setPeerTableSize(int peerTableSize) {
+        int size = Math.min(peerTableSize, MAX_TABLE_SIZE);
+        if (size != this.maxTableSize) {
+            this.maxTableSize = size;
+            this.smallestSizeUpdate = this.smallestSizeUpdate == -1 ? size : Math.min(this.smallestSizeUpdate, size);
+            evict(0);
+        }
+    }
+
+    public void beginBlock(ResponseBuffer out) {
+        if (this.smallestSizeUpdate != -1) {
+            writeInteger(out, 0x20, 5, this.smallestSizeUpdate);
+            if (this.smallestSizeUpdate != this.maxTableSize) {
+                writeInteger(out, 0x20, 5, this.maxTableSize);
+            }
+            this.smallestSizeUpdate = -1;
+        }
+    }
+
+    // The name has to be lower-case already
+    public void encode(ResponseBuffer out, String name, String value) {
+        String key = name + '\0' + value;
+        Integer staticIndex = STATIC_FIELDS.get(key);
+        if (staticIndex != null) {
+            writeInteger(out, 0x80, 7, staticIndex);
+            return;
+        }
+        Long number = this.dynamicFields.get(key);
+        if (number != null) {
+            writeInteger(out, 0x80, 7, HpackDecoder.STATIC_TABLE.length + 1 + (int) (this.insertions - number));
+            return;
+        }
+        int nameIndex = STATIC_NAMES.getOrDefault(name, 0);
+        int size = name.length() + value.length() + HpackDecoder.ENTRY_OVERHEAD;
+        if (INDEXED_NAMES.contains(name) && size <= this.maxTableSize) {
+            writeInteger(out, 0x40, 6, nameIndex);
+            add(key, size);
+        } else {
+            writeInteger(out, 0x00, 4, nameIndex);
+        }
+        if (nameIndex == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    private void add(String key, int size) {
+        evict(size);
+        this.insertions++;
+        this.dynamicTable.addLast(new Entry(key, size, this.insertions));
+        this.dynamicFields.put(key, this.insertions);
+        this.tableSize += size;
+    }
+
+    private void evict(int room) {
+        while (!this.dynamicTable.isEmpty() && this.tableSize + room > this.maxTableSize) {
+            Entry oldest = this.dynamicTable.removeFirst();
+            this.tableSize -= oldest.size();
+            this.dynamicFields.remove(oldest.key(), oldest.number());
+        }
+    }
+
+    private static void writeInteger(ResponseBuffer out, int pattern, int prefixBits, int value) {
+        int prefixMax = (1 << prefixBits) - 1;
+        if (value < prefixMax) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | prefixMax);
+        value -= prefixMax;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Huffman coded only when that's shorter
+    private static void writeString(ResponseBuffer out, String value) {
+        int huffmanLength = Huffman.encodedLength(value);
+        if (huffmanLength < value.length()) {
+            writeInteger(out, 0x80, 7, huffmanLength);
+            Huffman.encode(value, out);
+        } else {
+            writeInteger(out, 0x00, 7, value.length());
+            out.writeLatin1(value);
+        }
+    }
+}
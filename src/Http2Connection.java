@@ -0,0 +1,1073 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+// A cleartext HTTP/2 connection (RFC 9113) on the blocking engine, started either with the prior knowledge preface or
+// by upgrading an HTTP/1.1 request. The connection's thread reads and handles every frame, each complete request is
+// served on the stream executor, and the stream threads write their responses frame by frame under the write lock as
+// far as the flow control windows allow. Responses of different streams are thereby interleaved on the one connection.
+public class Http2Connection {
+    // What follows "PRI * HTTP/2.0\r\n\r\n" in the preface, the HTTP/1 parser reads the part before as a request
+    private static final byte[] PREFACE_END = "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    // Our own limits, only the ones that differ from the protocol defaults are sent in SETTINGS
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final GatheringByteChannel channel;
+    private final boolean secure;
+    private final MultiThreadedWebServer server;
+    private final String remoteHost;
+    private final String clientAddress;
+    private final ServerLog log;
+    private final Metrics metrics;
+    private final InputStream in;
+    private final ExecutorService streamExecutor;
+    private final int maxConcurrentStreams;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    // Only used by the reading thread
+    private final HpackDecoder decoder = new HpackDecoder(HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+    private final ResponseBuffer headerBlock = new ResponseBuffer();
+    // Stream whose header block continues in CONTINUATION frames, 0 if none
+    private int headerBlockStream;
+    private boolean headerBlockEndStream;
+    // Also read by drain(), under this
+    private int lastStreamId;
+    private boolean settingsReceived;
+    private boolean goAwayReceived;
+    private int receiveWindow = DEFAULT_WINDOW_SIZE;
+
+    // Guarded by the write lock, header blocks have to be encoded in the order they're sent
+    private final Object writeLock = new Object();
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final ResponseBuffer frameBuffer = new ResponseBuffer();
+    private final ResponseBuffer blockBuffer = new ResponseBuffer();
+
+    // Guarded by this, stream threads wait on it for the windows to open
+    private int sendWindow = DEFAULT_WINDOW_SIZE;
+    private int initialStreamSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+    private boolean closed;
+    // Also guarded by this: the SETTINGS were sent, so a GOAWAY may follow, and whether drain() has sent it
+    private boolean started;
+    private boolean goAwaySent;
+
+    // Reader and stream thread hand a stream over through the executor, which orders their accesses
+    private static class Stream {
+        private final int id;
+        private final long startNanos;
+        private HTTPRequest request;
+        private BodyConsumer bodyConsumer;
+        private long bodyReceived;
+        // Answered with this status instead of being processed, once it's set the rest of the body is dropped
+        private int errorStatus;
+        private boolean dispatched;
+        private int receiveWindow = DEFAULT_WINDOW_SIZE;
+        private volatile boolean endStreamReceived;
+        private volatile boolean reset;
+        // Guarded by the connection
+        private int sendWindow;
+        // Only used by the thread serving the stream, sent together with the first DATA frame when there is one
+        private List<String> pendingHeaders;
+
+        private Stream(int id, int sendWindow, long startNanos) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+            this.startNanos = startNanos;
+        }
+    }
+
+    // The socket is the accepted one, the channel and input stream are the TLS socket's on a secure connection
+    public Http2Connection(Socket socket, GatheringByteChannel channel, boolean secure, MultiThreadedWebServer server, String remoteHost,
+                           String clientAddress, InputStream in) {
+        this.socket = socket;
+        this.channel = channel;
+        this.secure = secure;
+        this.server = server;
+        this.remoteHost = remoteHost;
+        this.clientAddress = clientAddress;
+        this.log = server.getLog();
+        this.metrics = server.getMetrics();
+        // Frames are read a few bytes at a time
+        this.in = new BufferedInputStream(in, MAX_FRAME_SIZE + FRAME_HEADER_LENGTH);
+        this.streamExecutor = server.getStreamExecutor();
+        this.maxConcurrentStreams = server.getHttp2MaxConcurrentStreams();
+    }
+
+    // Upgrade: h2c with HTTP2-Settings, offered in Connection. Only requests without a body are upgraded,
+    // the others are simply answered with HTTP/1.1.
+    public static boolean isUpgradeRequest(HTTPRequest request) {
+        return hasToken(request.getHeader("upgrade"), "h2c") && hasToken(request.getHeader("connection"), "upgrade")
+                && request.getHeader("http2-settings") != null && !request.hasBody();
+    }
+
+    public static void switchProtocols(GatheringByteChannel channel) throws IOException {
+        ByteBuffer response = ByteBuffer.wrap(SWITCHING_PROTOCOLS);
+        while (response.hasRemaining()) {
+            channel.write(response);
+        }
+    }
+
+    private static boolean hasToken(String header, String token) {
+        if (header == null) {
+            return false;
+        }
+        for (String value : header.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Serves the connection until either side closes it. The request an upgrade was made with, if any, is answered on
+    // stream 1.
+    public void serve(HTTPRequest upgradeRequest) throws IOException {
+        this.socket.setSoTimeout(this.server.getKeepAliveTimeout());
+        this.log.debug("[" + this.clientAddress + "]: Switched to HTTP/2");
+        boolean graceful = true;
+        try {
+            writeSettings();
+            if (upgradeRequest != null) {
+                startUpgradedStream(upgradeRequest);
+            }
+            synchronized (this) {
+                this.started = true;
+            }
+            // The server may have started draining while the connection was switching
+            drain();
+            readPrefaceEnd();
+            while (readFrame()) {
+                if ((this.goAwayReceived || isGoAwaySent()) && this.streams.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (Http2Exception e) {
+            this.log.debug("[" + this.clientAddress + "]: HTTP/2 connection error: " + e.getMessage());
+            graceful = false;
+            writeGoAway(e.getErrorCode());
+        } catch (IOException e) {
+            graceful = false;
+            throw e;
+        } finally {
+            close(graceful);
+        }
+    }
+
+    // Graceful shutdown while the server drains: the GOAWAY tells the client the last stream that will be answered, and
+    // the connection closes once those are. Called from another thread, possibly before serve() has sent the SETTINGS
+    // which have to come first, then serve() calls it again.
+    public void drain() {
+        int goAwayStreamId;
+        synchronized (this) {
+            if (!this.started || this.goAwaySent || !this.server.isDraining()) {
+                return;
+            }
+            this.goAwaySent = true;
+            goAwayStreamId = this.lastStreamId;
+        }
+        writeGoAway(goAwayStreamId, Http2Exception.NO_ERROR);
+        closeInputIfDrained();
+    }
+
+    private synchronized boolean isGoAwaySent() {
+        return this.goAwaySent;
+    }
+
+    // Wakes the reading thread up once the last stream after a GOAWAY is answered, the client may not close itself
+    private void closeInputIfDrained() {
+        synchronized (this) {
+            if (!this.goAwaySent || !this.streams.isEmpty()) {
+                return;
+            }
+        }
+        try {
+            this.socket.shutdownInput();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void startUpgradedStream(HTTPRequest request) throws Http2Exception {
+        // The client's settings came in the header, base64url encoded without padding
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(request.getHeader("http2-settings").trim());
+        } catch (IllegalArgumentException e) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid HTTP2-Settings header");
+        }
+        applySettings(settings, settings.length);
+        this.lastStreamId = 1;
+        Stream stream = new Stream(1, this.initialStreamSendWindow, System.nanoTime());
+        stream.request = request;
+        stream.endStreamReceived = true;
+        this.streams.put(stream.id, stream);
+        dispatch(stream);
+    }
+
+    private void readPrefaceEnd() throws IOException, Http2Exception {
+        byte[] prefaceEnd = new byte[PREFACE_END.length];
+        readFully(prefaceEnd, prefaceEnd.length);
+        if (!Arrays.equals(prefaceEnd, PREFACE_END)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    // Returns false once the connection should be closed
+    private boolean readFrame() throws IOException, Http2Exception {
+        int first;
+        try {
+            first = this.in.read();
+        } catch (SocketTimeoutException e) {
+            // Idle between frames, the connection is only closed if no stream is waiting for its response
+            if (this.streams.isEmpty()) {
+                writeGoAway(Http2Exception.NO_ERROR);
+                return false;
+            }
+            return true;
+        }
+        if (first == -1) {
+            return false;
+        }
+        this.frameHeader[0] = (byte) first;
+        readFully(this.frameHeader, 1, FRAME_HEADER_LENGTH - 1);
+        int length = readInt24(this.frameHeader, 0);
+        int type = this.frameHeader[3] & 0xff;
+        int flags = this.frameHeader[4] & 0xff;
+        int streamId = readInt32(this.frameHeader, 5) & 0x7fffffff;
+        if (length > MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes is larger than " + MAX_FRAME_SIZE);
+        }
+        readFully(this.payload, length);
+        if (!this.settingsReceived && type != SETTINGS) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "The preface has to be followed by SETTINGS");
+        }
+        if (this.headerBlockStream != 0 && (type != CONTINUATION || streamId != this.headerBlockStream)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Header block interrupted by another frame");
+        }
+
+        try {
+            switch (type) {
+                case DATA -> onData(flags, streamId, length);
+                case HEADERS -> onHeaders(flags, streamId, length);
+                case PRIORITY -> onPriority(streamId, length);
+                case RST_STREAM -> onReset(streamId, length);
+                case SETTINGS -> onSettings(flags, streamId, length);
+                case PUSH_PROMISE -> throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Clients can't push");
+                case PING -> onPing(flags, streamId, length);
+                case GOAWAY -> onGoAway(streamId, length);
+                case WINDOW_UPDATE -> onWindowUpdate(streamId, length);
+                case CONTINUATION -> onContinuation(flags, streamId, length);
+                // Unknown frame types are ignored
+            }
+        } catch (Http2Exception e) {
+            if (e.isConnectionError()) {
+                throw e;
+            }
+            this.log.debug("[" + this.clientAddress + "]: Resetting stream " + e.getStreamId() + ": " + e.getMessage());
+            resetStream(e.getStreamId(), e.getErrorCode());
+        }
+        return true;
+    }
+
+    private void onHeaders(int flags, int streamId, int length) throws Http2Exception {
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid stream " + streamId + " for HEADERS");
+        }
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int end = paddedEnd(flags, length);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            // Priorities are deprecated and ignored, responses are sent as they're ready
+            offset += 5;
+        }
+        if (end < offset) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS padding is longer than the frame");
+        }
+        this.headerBlock.reset();
+        this.headerBlock.write(this.payload, offset, end - offset);
+        this.headerBlockStream = streamId;
+        this.headerBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaderBlock();
+        }
+    }
+
+    // End of the payload without the padding, which follows a pad length byte when the frame is PADDED
+    private int paddedEnd(int flags, int length) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return length;
+        }
+        if (length == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PADDED frame without a pad length");
+        }
+        return length - (this.payload[0] & 0xff);
+    }
+
+    private void onContinuation(int flags, int streamId, int length) throws Http2Exception {
+        if (this.headerBlockStream == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        }
+        if (this.headerBlock.size() + length > MAX_HEADER_LIST_SIZE) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block is larger than " + MAX_HEADER_LIST_SIZE);
+        }
+        this.headerBlock.write(this.payload, 0, length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaderBlock();
+        }
+    }
+
+    private void endHeaderBlock() throws Http2Exception {
+        int streamId = this.headerBlockStream;
+        this.headerBlockStream = 0;
+        long startNanos = System.nanoTime();
+        // Decoded even if the stream is refused, the decoder's table has to follow every block
+        ByteBuffer block = this.headerBlock.toByteBuffer();
+        List<String> fields = this.decoder.decode(block.array(), 0, block.limit());
+
+        if (streamId <= this.lastStreamId) {
+            // Trailers, which end the request body, or headers of a stream that was already reset
+            Stream stream = this.streams.get(streamId);
+            if (stream != null && !stream.endStreamReceived) {
+                if (!this.headerBlockEndStream) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers have to end the stream");
+                }
+                endRequestBody(stream);
+            }
+            return;
+        }
+        boolean afterGoAway;
+        synchronized (this) {
+            // drain() reads it from another thread
+            this.lastStreamId = streamId;
+            afterGoAway = this.goAwaySent;
+        }
+        if (afterGoAway) {
+            throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Stream started after GOAWAY");
+        }
+        if (this.streams.size() >= this.maxConcurrentStreams) {
+            throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "More than " + this.maxConcurrentStreams + " concurrent streams");
+        }
+
+        Stream stream;
+        synchronized (this) {
+            stream = new Stream(streamId, this.initialStreamSendWindow, startNanos);
+        }
+        stream.request = new HTTPRequest();
+        stream.endStreamReceived = this.headerBlockEndStream;
+        try {
+            toRequest(streamId, fields, stream.request);
+        } catch (BadRequestException e) {
+            this.log.debug("[" + this.clientAddress + "]: " + e.getMessage());
+            stream.errorStatus = e.getStatusCode();
+        }
+        this.metrics.recordParse(System.nanoTime() - startNanos);
+        this.streams.put(streamId, stream);
+        if (stream.endStreamReceived || stream.errorStatus != 0) {
+            dispatch(stream);
+        } else {
+            // The body goes on to the upstream as it arrives, on this thread, so a slow upstream slows the connection
+            ReverseProxy proxy = this.server.getReverseProxy();
+            BodyConsumer forwarded = proxy != null ? proxy.forward(stream.request, this.remoteHost, this.secure, stream.request.getHeader("content-length") == null) : null;
+            stream.bodyConsumer = forwarded != null ? forwarded : stream.request.newBodyConsumer();
+        }
+    }
+
+    // Pseudo-headers become the request line, the other fields the headers. Malformed requests reset the stream,
+    // requests the HTTP/1 code rejects get the same error response they would get there.
+    private static void toRequest(int streamId, List<String> fields, HTTPRequest request) throws Http2Exception, BadRequestException {
+        String method = null;
+        String path = null;
+        String scheme = null;
+        String authority = null;
+        int regularFields = fields.size();
+        boolean hasHost = false;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (!name.startsWith(":")) {
+                if (regularFields == fields.size()) {
+                    regularFields = i;
+                }
+                if (!isLowerCase(name) || CONNECTION_HEADERS.contains(name) || (name.equals("te") && !value.equals("trailers"))) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Invalid header field " + name);
+                }
+                hasHost |= name.equals("host");
+                continue;
+            }
+            if (regularFields != fields.size()) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Pseudo-header field after a regular one");
+            }
+            switch (name) {
+                case ":method" -> method = single(streamId, method, value);
+                case ":path" -> path = single(streamId, path, value);
+                case ":scheme" -> scheme = single(streamId, scheme, value);
+                case ":authority" -> authority = single(streamId, authority, value);
+                default -> throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Unknown pseudo-header field " + name);
+            }
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty()) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Missing pseudo-header fields");
+        }
+
+        // The raw headers are only kept for TRACE and debug logging, in the HTTP/1 form
+        StringBuilder rawHeaders = new StringBuilder().append(method).append(' ').append(path).append(" HTTP/2.0\r\n");
+        request.setRequestLine(method, path, "HTTP/2.0");
+        if (authority != null && !hasHost) {
+            request.addHeader("host", authority);
+            rawHeaders.append("host: ").append(authority).append("\r\n");
+        }
+        for (int i = regularFields; i < fields.size(); i += 2) {
+            request.addHeader(fields.get(i), fields.get(i + 1));
+            rawHeaders.append(fields.get(i)).append(": ").append(fields.get(i + 1)).append("\r\n");
+        }
+        byte[] headerBytes = rawHeaders.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        request.endHeaders(headerBytes, 0, headerBytes.length);
+    }
+
+    private static String single(int streamId, String current, String value) throws Http2Exception {
+        if (current != null) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Repeated pseudo-header field");
+        }
+        return value;
+    }
+
+    private static boolean isLowerCase(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void onData(int flags, int streamId, int length) throws IOException, Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int end = paddedEnd(flags, length);
+        if (end < offset) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA padding is longer than the frame");
+        }
+        // The whole frame counts against the windows, padding included
+        this.receiveWindow -= length;
+        if (this.receiveWindow < 0) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "DATA beyond the connection window");
+        }
+        if (this.receiveWindow <= DEFAULT_WINDOW_SIZE / 2) {
+            writeWindowUpdate(0, DEFAULT_WINDOW_SIZE - this.receiveWindow);
+            this.receiveWindow = DEFAULT_WINDOW_SIZE;
+        }
+
+        Stream stream = this.streams.get(streamId);
+        if (stream == null) {
+            if (streamId > this.lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // Frames still in flight for a stream that was reset
+            return;
+        }
+        if (stream.endStreamReceived) {
+            throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA after the end of the stream");
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "DATA beyond the stream window");
+        }
+
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if (stream.errorStatus == 0) {
+            stream.bodyReceived += end - offset;
+            if (stream.bodyReceived > this.server.getMaxRequestBodySize()) {
+                // Answered right away, the client learns from the reset after the response that the rest isn't needed
+                stream.errorStatus = 413;
+                dispatch(stream);
+            } else {
+                stream.bodyConsumer.write(this.payload, offset, end - offset);
+            }
+        }
+        if (endStream) {
+            endRequestBody(stream);
+        } else if (stream.receiveWindow <= DEFAULT_WINDOW_SIZE / 2) {
+            writeWindowUpdate(streamId, DEFAULT_WINDOW_SIZE - stream.receiveWindow);
+            stream.receiveWindow = DEFAULT_WINDOW_SIZE;
+        }
+    }
+
+    private void endRequestBody(Stream stream) throws Http2Exception {
+        stream.endStreamReceived = true;
+        if (stream.dispatched) {
+            return;
+        }
+        stream.bodyConsumer.finish();
+        stream.request.setBodyLength(stream.bodyReceived);
+        String contentLength = stream.request.getHeader("content-length");
+        if (contentLength != null && stream.request.getContentLength() != stream.bodyReceived) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Body length doesn't match Content-Length");
+        }
+        dispatch(stream);
+    }
+
+    private void onPriority(int streamId, int length) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+        }
+        if (length != 5) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "PRIORITY frame of " + length + " bytes");
+        }
+    }
+
+    private void onReset(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM frame of " + length + " bytes");
+        }
+        if (streamId == 0 || streamId > this.lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Stream stream = this.streams.get(streamId);
+        if (stream != null) {
+            this.log.debug("[" + this.clientAddress + "]: Stream " + streamId + " was reset by the client");
+            stream.reset = true;
+            if (!stream.dispatched) {
+                this.streams.remove(streamId);
+                abortProxyExchange(stream);
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void onSettings(int flags, int streamId, int length) throws IOException, Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        applySettings(this.payload, length);
+        this.settingsReceived = true;
+        writeFrame(SETTINGS, FLAG_ACK, 0, this.payload, 0);
+    }
+
+    private void applySettings(byte[] settings, int length) throws Http2Exception {
+        if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = ((settings[i] & 0xff) << 8) | (settings[i + 1] & 0xff);
+            int value = readInt32(settings, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> {
+                    synchronized (this.writeLock) {
+                        // Values beyond 2^31 - 1 are as good as unlimited
+                        this.encoder.setPeerTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    }
+                }
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH " + value);
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        // Applies to the open streams too, by the difference to the previous value
+                        int delta = value - this.initialStreamSendWindow;
+                        for (Stream stream : this.streams.values()) {
+                            if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) {
+                                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+                            }
+                            stream.sendWindow += delta;
+                        }
+                        this.initialStreamSendWindow = value;
+                        notifyAll();
+                    }
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE " + value);
+                    }
+                    synchronized (this) {
+                        this.peerMaxFrameSize = value;
+                    }
+                }
+                // SETTINGS_MAX_CONCURRENT_STREAMS only limits pushes, which aren't sent. Unknown settings are ignored.
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, int length) throws IOException, Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if (length != 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "PING frame of " + length + " bytes");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeFrame(PING, FLAG_ACK, 0, this.payload, 8);
+        }
+    }
+
+    private void onGoAway(int streamId, int length) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+        }
+        if (length < 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "GOAWAY frame of " + length + " bytes");
+        }
+        // The streams already started are still answered, the connection closes once they're done
+        this.goAwayReceived = true;
+        this.log.debug("[" + this.clientAddress + "]: Client sent GOAWAY with error code " + readInt32(this.payload, 4));
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE frame of " + length + " bytes");
+        }
+        int increment = readInt32(this.payload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "WINDOW_UPDATE without an increment");
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                if ((long) this.sendWindow + increment > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+                this.sendWindow += increment;
+            } else {
+                Stream stream = this.streams.get(streamId);
+                if (stream == null) {
+                    if (streamId > this.lastStreamId) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+                    }
+                    return;
+                }
+                if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+                }
+                stream.sendWindow += increment;
+            }
+            notifyAll();
+        }
+    }
+
+    private void dispatch(Stream stream) {
+        stream.dispatched = true;
+        try {
+            this.streamExecutor.execute(() -> serveStream(stream));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            resetStream(stream.id, Http2Exception.REFUSED_STREAM);
+        }
+    }
+
+    // Runs on the stream executor
+    private void serveStream(Stream stream) {
+        HTTPRequest request = stream.request;
+        RequestProcessor requestProcessor = this.server.getRequestProcessor();
+        ReverseProxy proxy = this.server.getReverseProxy();
+        if (proxy != null && stream.errorStatus == 0 && request.getProxyExchange() == null) {
+            // Requests without a body are forwarded here, the connection doesn't wait for the upstream
+            proxy.forward(request, this.remoteHost, this.secure, false);
+        }
+        try {
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("[" + this.clientAddress + "]: HTTP/2 stream " + stream.id + " request Headers: \n" + request.getRawHeaders());
+            }
+            HTTPResponse response = stream.errorStatus != 0
+                    ? requestProcessor.handleBadRequestError(request, stream.errorStatus)
+                    : requestProcessor.process(request);
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("[" + this.clientAddress + "]: HTTP/2 stream " + stream.id + " response Headers: \n" + response.getHeaders());
+            }
+            long writeStartNanos = System.nanoTime();
+            writeResponse(stream, response);
+            this.log.access(this.remoteHost, request, response, stream.startNanos);
+            this.metrics.recordRequest(request, response, stream.startNanos, writeStartNanos);
+        } catch (Exception e) {
+            this.log.debug("[" + this.clientAddress + "]: Failed to respond on stream " + stream.id + ": " + e.getMessage());
+            if (!stream.reset) {
+                stream.reset = true;
+                writeResetQuietly(stream.id, Http2Exception.INTERNAL_ERROR);
+            }
+        } finally {
+            // Responded before the client finished the request, the rest of it isn't needed
+            if (!stream.endStreamReceived && !stream.reset) {
+                writeResetQuietly(stream.id, Http2Exception.NO_ERROR);
+            }
+            this.streams.remove(stream.id);
+            synchronized (this) {
+                notifyAll();
+            }
+            closeInputIfDrained();
+        }
+    }
+
+    private void writeResponse(Stream stream, HTTPResponse response) throws IOException {
+        List<String> fields = new ArrayList<>();
+        fields.add(":status");
+        fields.add(String.valueOf(response.getStatusCode()));
+        fields.add("date");
+        fields.add(HTTPDate.now());
+        for (Map.Entry<String, String> header : response.getHeaderFields().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            // Repeated fields such as Set-Cookie are kept one per line
+            String value = header.getValue();
+            for (String line : value.indexOf('\n') == -1 ? new String[]{value} : value.split("\n")) {
+                fields.add(name);
+                fields.add(line);
+            }
+        }
+        stream.pendingHeaders = fields;
+        if (!response.hasBodyToSend()) {
+            writeStreamFrames(stream, null, 0, 0, true);
+            return;
+        }
+        // HTTP/2 frames the body itself, a chunked HTTP/1 response is sent as plain data
+        StreamOutputStream out = new StreamOutputStream(stream);
+        try {
+            response.writeBody(out);
+            out.close();
+        } finally {
+            out.release();
+        }
+    }
+
+    // Sends data on the stream as the windows open up, in frames no larger than the client accepts
+    private void sendData(Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        long deadline = System.currentTimeMillis() + this.server.getReadTimeout();
+        while (true) {
+            int count;
+            synchronized (this) {
+                // Windows can be negative after the client shrank its initial window size
+                count = length == 0 ? 0 : Math.min(length, Math.min(this.peerMaxFrameSize, Math.min(this.sendWindow, stream.sendWindow)));
+                if (length > 0 && count <= 0) {
+                    if (this.closed || stream.reset) {
+                        throw new IOException("Stream " + stream.id + " closed while waiting for its window");
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new IOException("Flow control window of stream " + stream.id + " stayed closed");
+                    }
+                    if (stream.pendingHeaders == null) {
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        continue;
+                    }
+                    // The client may wait for the headers before it opens the window
+                    count = -1;
+                } else {
+                    this.sendWindow -= count;
+                    stream.sendWindow -= count;
+                }
+            }
+            if (count == -1) {
+                writeStreamFrames(stream, null, 0, 0, false);
+                continue;
+            }
+            writeStreamFrames(stream, data, offset, count, endStream && count == length);
+            offset += count;
+            length -= count;
+            if (length == 0) {
+                return;
+            }
+            deadline = System.currentTimeMillis() + this.server.getReadTimeout();
+        }
+    }
+
+    // The stream's pending headers, if any, followed by a DATA frame unless data is null, in one write
+    private void writeStreamFrames(Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        synchronized (this.writeLock) {
+            if (stream.reset) {
+                throw new IOException("Stream " + stream.id + " was reset");
+            }
+            this.frameBuffer.reset();
+            if (stream.pendingHeaders != null) {
+                this.blockBuffer.reset();
+                this.encoder.beginBlock(this.blockBuffer);
+                for (int i = 0; i < stream.pendingHeaders.size(); i += 2) {
+                    this.encoder.encode(this.blockBuffer, stream.pendingHeaders.get(i), stream.pendingHeaders.get(i + 1));
+                }
+                stream.pendingHeaders = null;
+                int maxFrameSize;
+                synchronized (this) {
+                    maxFrameSize = this.peerMaxFrameSize;
+                }
+                ByteBuffer block = this.blockBuffer.toByteBuffer();
+                int blockOffset = 0;
+                int type = HEADERS;
+                int flags = data == null && endStream ? FLAG_END_STREAM : 0;
+                do {
+                    int fragment = Math.min(block.limit() - blockOffset, maxFrameSize);
+                    boolean last = blockOffset + fragment == block.limit();
+                    writeFrameHeader(this.frameBuffer, fragment, type, flags | (last ? FLAG_END_HEADERS : 0), stream.id);
+                    this.frameBuffer.write(block.array(), blockOffset, fragment);
+                    blockOffset += fragment;
+                    type = CONTINUATION;
+                    flags = 0;
+                } while (blockOffset < block.limit());
+            }
+            if (data == null) {
+                this.frameBuffer.writeTo(this.channel);
+            } else {
+                writeFrameHeader(this.frameBuffer, length, DATA, endStream ? FLAG_END_STREAM : 0, stream.id);
+                this.frameBuffer.writeTo(this.channel, ByteBuffer.wrap(data, offset, length));
+            }
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[12];
+        writeSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, this.maxConcurrentStreams);
+        writeSetting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, settings, settings.length);
+    }
+
+    private static void writeSetting(byte[] settings, int offset, int id, int value) {
+        settings[offset] = (byte) (id >>> 8);
+        settings[offset + 1] = (byte) id;
+        writeInt32(settings, offset + 2, value);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] frame = new byte[4];
+        writeInt32(frame, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, frame, frame.length);
+    }
+
+    private void resetStream(int streamId, int errorCode) {
+        Stream stream = this.streams.get(streamId);
+        if (stream != null) {
+            stream.reset = true;
+            if (!stream.dispatched) {
+                this.streams.remove(streamId);
+                abortProxyExchange(stream);
+            }
+        }
+        writeResetQuietly(streamId, errorCode);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    // A request that won't be answered leaves its upstream connection in the middle of the request
+    private static void abortProxyExchange(Stream stream) {
+        ProxyExchange exchange = stream.request.getProxyExchange();
+        if (exchange != null) {
+            exchange.abort();
+        }
+    }
+
+    private void writeResetQuietly(int streamId, int errorCode) {
+        byte[] frame = new byte[4];
+        writeInt32(frame, 0, errorCode);
+        try {
+            writeFrame(RST_STREAM, 0, streamId, frame, frame.length);
+        } catch (IOException e) {
+            // The connection is gone, and the stream with it
+        }
+    }
+
+    private void writeGoAway(int errorCode) {
+        writeGoAway(this.lastStreamId, errorCode);
+    }
+
+    private void writeGoAway(int lastStreamId, int errorCode) {
+        byte[] frame = new byte[8];
+        writeInt32(frame, 0, lastStreamId);
+        writeInt32(frame, 4, errorCode);
+        try {
+            writeFrame(GOAWAY, 0, 0, frame, frame.length);
+        } catch (IOException e) {
+            this.log.debug("[" + this.clientAddress + "]: Failed to send GOAWAY");
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int length) throws IOException {
+        synchronized (this.writeLock) {
+            this.frameBuffer.reset();
+            writeFrameHeader(this.frameBuffer, length, type, flags, streamId);
+            this.frameBuffer.write(payload, 0, length);
+            this.frameBuffer.writeTo(this.channel);
+        }
+    }
+
+    private static void writeFrameHeader(ResponseBuffer out, int length, int type, int flags, int streamId) {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(streamId >>> 24);
+        out.write(streamId >>> 16);
+        out.write(streamId >>> 8);
+        out.write(streamId);
+    }
+
+    // After a clean end the streams in progress may still finish their responses, for as long as a read may take
+    private void close(boolean graceful) {
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + this.server.getReadTimeout();
+            long wait;
+            while (graceful && !this.streams.isEmpty() && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            this.closed = true;
+            notifyAll();
+        }
+        // Requests the client didn't finish won't be answered
+        for (Stream stream : this.streams.values()) {
+            if (!stream.dispatched) {
+                abortProxyExchange(stream);
+            }
+        }
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        readFully(buffer, 0, length);
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = this.in.read(buffer, offset, length);
+            if (read == -1) {
+                throw new EOFException("Connection closed within a frame");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private static int readInt24(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 16) | ((buffer[offset + 1] & 0xff) << 8) | (buffer[offset + 2] & 0xff);
+    }
+
+    private static int readInt32(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void writeInt32(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    // Collects a stream's body into frames of up to 16KB, the last one is sent with END_STREAM on close
+    private class StreamOutputStream extends OutputStream {
+        private final Stream stream;
+        private final byte[] buffer;
+        private int count;
+
+        private StreamOutputStream(Stream stream) {
+            this.stream = stream;
+            // sendData() is done with the bytes when it returns, so the buffer is free again after the last frame
+            this.buffer = server.getBufferPool().acquire(MAX_FRAME_SIZE);
+        }
+
+        private void release() {
+            server.getBufferPool().release(this.buffer);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.count == this.buffer.length) {
+                flushBuffer();
+            }
+            this.buffer[this.count++] = (byte) b;
+        }
+
+        // The last bytes always stay buffered, so close() can send them with END_STREAM instead of an empty frame
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.count + len > this.buffer.length) {
+                int fill = this.buffer.length - this.count;
+                System.arraycopy(b, off, this.buffer, this.count, fill);
+                this.count += fill;
+                off += fill;
+                len -= fill;
+                flushBuffer();
+                // Whole frames are sent straight from the caller's array
+                int direct = len - ((len - 1) % this.buffer.length + 1);
+                if (direct > 0) {
+                    sendData(this.stream, b, off, direct, false);
+                    off += direct;
+                    len -= direct;
+                }
+            }
+            System.arraycopy(b, off, this.buffer, this.count, len);
+            this.count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            sendData(this.stream, this.buffer, 0, this.count, true);
+            this.count = 0;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (this.count > 0) {
+                sendData(this.stream, this.buffer, 0, this.count, false);
+                this.count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// A producer's body handed out a piece at a time, for the non-blocking engine which can't let a producer push the
+// whole body. The next piece is only asked for once the socket took the previous one, so a connection never holds
+// more than a piece of it.
+public interface IncrementalBody extends Closeable {
+    // Writes the next piece of about maxLength bytes (it may be empty), returns false once the body is complete
+    boolean writeNext(OutputStream out, int maxLength) throws IOException;
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// HdrHistogram-style latency histogram in microseconds: every power of two is split into 8 linear sub-buckets, so a
+// recorded value is off by at most 12.5% while a few hundred buckets cover everything from 1us to hours.
+// Buckets are striped counters created on first use, recording never blocks and rarely contends.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_VALUE = (1L << 36) - 1;
+    private static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+    private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<>(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_VALUE));
+        int index = indexOf(value);
+        LongAdder bucket = this.buckets.get(index);
+        if (bucket == null) {
+            this.buckets.compareAndSet(index, null, new LongAdder());
+            bucket = this.buckets.get(index);
+        }
+        bucket.increment();
+        this.count.increment();
+        this.sum.add(value);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getSumMicros() {
+        return this.sum.sum();
+    }
+
+    // For each bound, how many values were at most that many microseconds. A bucket straddling a bound is counted
+    // towards the next one, so the counts are low by at most one bucket's width
+    public long[] cumulativeCounts(long[] boundsMicros) {
+        long[] counts = new long[boundsMicros.length];
+        long cumulative = 0;
+        int bound = 0;
+        for (int index = 0; index < BUCKET_COUNT && bound < boundsMicros.length; index++) {
+            while (bound < boundsMicros.length && upperBoundOf(index) - 1 > boundsMicros[bound]) {
+                counts[bound++] = cumulative;
+            }
+            LongAdder bucket = this.buckets.get(index);
+            if (bucket != null) {
+                cumulative += bucket.sum();
+            }
+        }
+        while (bound < boundsMicros.length) {
+            counts[bound++] = cumulative;
+        }
+        return counts;
+    }
+
+    // Values below 8 get a bucket each, above that the exponent picks the group and the next 3 bits the sub-bucket
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Exclusive upper bound of the values falling into the bucket
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+}
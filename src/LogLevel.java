@@ -0,0 +1,11 @@
+public enum LogLevel {
+    DEBUG, INFO, WARN, ERROR, OFF;
+
+    public static LogLevel fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return INFO;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free queue for many producers (request threads) and a single consumer (the log writer).
+// Every slot has a sequence number telling whether it's free for the producer claiming position p (sequence == p)
+// or holds an element for the consumer reading position p (sequence == p + 1).
+public class LogRingBuffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only touched by the consumer thread
+    private long head;
+
+    public LogRingBuffer(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    // Returns false instead of waiting when the buffer is full
+    public boolean offer(T element) {
+        long position = this.tail.get();
+        while (true) {
+            int index = (int) (position & this.mask);
+            long sequence = this.sequences.get(index);
+            if (sequence == position) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.slots.set(index, element);
+                    // Publishes the element to the consumer
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+                position = this.tail.get();
+            } else if (sequence < position) {
+                // The consumer hasn't freed this slot since the last lap
+                return false;
+            } else {
+                position = this.tail.get();
+            }
+        }
+    }
+
+    // Must only be called from the consumer thread
+    public T poll() {
+        int index = (int) (this.head & this.mask);
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+        T element = this.slots.get(index);
+        this.slots.set(index, null);
+        // Hands the slot back to producers for the next lap
+        this.sequences.set(index, this.head + this.slots.length());
+        this.head++;
+        return element;
+    }
+
+    public int getCapacity() {
+        return this.slots.length();
+    }
+}
@@ -1,12 +1,20 @@
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Properties;
 
 public class Main {
     public static void main(String[] argv) {
-        Properties config = new Properties();
+        // The configuration file can be given as the only argument
+        Path configFile = Paths.get(argv.length > 0 ? argv[0] : "src/config.ini");
         try {
-            config.load(new FileInputStream("src/config.ini"));
+            Properties config = ConfigReloader.load(configFile);
             MultiThreadedWebServer server = new MultiThreadedWebServer(config);
+            // Stopping the JVM (Ctrl-C, SIGTERM) drains the server instead of dropping the requests in progress
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "server-shutdown"));
+            if (Boolean.parseBoolean(config.getProperty("configReload", "true"))) {
+                new ConfigReloader(configFile, server);
+            }
             server.run();
         } catch (IOException e) {
             System.out.println("Failed to load data from configuration file: " + e.getMessage());
@@ -0,0 +1,204 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms of the whole server, exported in the Prometheus text format on metricsPath.
+// Recording only touches striped counters, all aggregation happens when the metrics are scraped.
+public class Metrics {
+    public static final int REJECTED_QUEUE_FULL = 0;
+    public static final int REJECTED_PER_IP = 1;
+    private static final String[] REJECTION_REASONS = {"queue_full", "per_ip_limit"};
+    // Methods outside of this list are counted as OTHER, so clients can't create new series at will
+    private static final String[] METHODS = {"GET", "POST", "HEAD", "TRACE", "PUT", "DELETE", "OPTIONS", "PATCH", "CONNECT", "OTHER"};
+    private static final int MAX_STATUS = 600;
+    // Histogram buckets exported to Prometheus, in microseconds
+    private static final long[] EXPORTED_BOUNDS = {100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000};
+
+    private final MultiThreadedWebServer server;
+    // Request durations by method and status, created when the combination is first seen
+    private final AtomicReferenceArray<LatencyHistogram> requestDurations = new AtomicReferenceArray<>(METHODS.length * MAX_STATUS);
+    private final LatencyHistogram parseTimes = new LatencyHistogram();
+    private final LatencyHistogram writeTimes = new LatencyHistogram();
+    private final LatencyHistogram acceptTimes = new LatencyHistogram();
+    private final LatencyHistogram queueWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram tlsHandshakeTimes = new LatencyHistogram();
+    private final LongAdder fullTlsHandshakes = new LongAdder();
+    private final LongAdder resumedTlsHandshakes = new LongAdder();
+    private final LongAdder failedTlsHandshakes = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder[] rejectedConnections = {new LongAdder(), new LongAdder()};
+
+    public Metrics(MultiThreadedWebServer server) {
+        this.server = server;
+    }
+
+    // Time the acceptor spent on a connection between accept() returning and handing it off
+    public void recordAccept(long acceptedNanos) {
+        this.acceptedConnections.increment();
+        this.acceptTimes.recordNanos(System.nanoTime() - acceptedNanos);
+    }
+
+    // Time a connection waited between being accepted and a worker picking it up
+    public void recordQueueWait(long acceptedNanos) {
+        this.queueWaitTimes.recordNanos(System.nanoTime() - acceptedNanos);
+    }
+
+    public void recordRejected(int reason) {
+        this.rejectedConnections[reason].increment();
+    }
+
+    public void connectionOpened() {
+        this.openConnections.increment();
+    }
+
+    public void connectionClosed() {
+        this.openConnections.decrement();
+    }
+
+    // A full handshake costs the certificate signature and key agreement, a resumed one skips both
+    public void recordTlsHandshake(boolean resumed, long startNanos) {
+        this.tlsHandshakeTimes.recordNanos(System.nanoTime() - startNanos);
+        (resumed ? this.resumedTlsHandshakes : this.fullTlsHandshakes).increment();
+    }
+
+    public void recordTlsHandshakeFailure() {
+        this.failedTlsHandshakes.increment();
+    }
+
+    public void recordParse(long parseNanos) {
+        this.parseTimes.recordNanos(parseNanos);
+    }
+
+    // startNanos is when the request was parsed, writeStartNanos when its response started to be written
+    public void recordRequest(HTTPRequest request, HTTPResponse response, long startNanos, long writeStartNanos) {
+        long now = System.nanoTime();
+        this.writeTimes.recordNanos(now - writeStartNanos);
+        requestDurations(methodIndex(request), response.getStatusCode()).recordNanos(now - startNanos);
+        long bodyLength = response.getBodyLength();
+        if (bodyLength > 0) {
+            this.bytesSent.add(bodyLength);
+        }
+    }
+
+    private LatencyHistogram requestDurations(int methodIndex, int status) {
+        int index = methodIndex * MAX_STATUS + Math.max(0, Math.min(status, MAX_STATUS - 1));
+        LatencyHistogram histogram = this.requestDurations.get(index);
+        if (histogram == null) {
+            this.requestDurations.compareAndSet(index, null, new LatencyHistogram());
+            histogram = this.requestDurations.get(index);
+        }
+        return histogram;
+    }
+
+    private static int methodIndex(HTTPRequest request) {
+        String method = request == null ? null : request.getType();
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    public byte[] toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP http_request_duration_seconds Time from a parsed request to its response written, by method and status.\n");
+        out.append("# TYPE http_request_duration_seconds histogram\n");
+        for (int i = 0; i < this.requestDurations.length(); i++) {
+            LatencyHistogram histogram = this.requestDurations.get(i);
+            if (histogram != null) {
+                String labels = "method=\"" + METHODS[i / MAX_STATUS] + "\",status=\"" + i % MAX_STATUS + "\",";
+                appendHistogramSeries(out, "http_request_duration_seconds", labels, histogram);
+            }
+        }
+        appendHistogram(out, "http_request_parse_seconds", "CPU time spent parsing request headers and bodies.", this.parseTimes);
+        appendHistogram(out, "http_response_write_seconds", "Time to hand a response to the socket.", this.writeTimes);
+        appendHistogram(out, "http_accept_seconds", "Time the acceptor spent on a new connection.", this.acceptTimes);
+        appendHistogram(out, "connection_queue_wait_seconds", "Time accepted connections waited for a worker thread.", this.queueWaitTimes);
+
+        FileCache fileCache = this.server.getFileCache();
+        appendHistogram(out, "file_read_seconds", "Time to read a file into the cache.", fileCache.getReadTimes());
+        appendCounter(out, "http_response_body_bytes_total", "Response body bytes sent, without chunk framing.", this.bytesSent.sum());
+        appendCounter(out, "connections_accepted_total", "Accepted client connections.", this.acceptedConnections.sum());
+        appendGauge(out, "connections_open", "Client connections currently open.", this.openConnections.sum());
+        out.append("# HELP connections_rejected_total Connections answered with 503 by the acceptor, by reason.\n");
+        out.append("# TYPE connections_rejected_total counter\n");
+        for (int i = 0; i < REJECTION_REASONS.length; i++) {
+            out.append("connections_rejected_total{reason=\"").append(REJECTION_REASONS[i]).append("\"} ").append(this.rejectedConnections[i].sum()).append('\n');
+        }
+        appendCounter(out, "file_cache_hits_total", "File cache lookups answered from memory.", fileCache.getHits());
+        appendCounter(out, "file_cache_misses_total", "File cache lookups that went to disk.", fileCache.getMisses());
+        appendCounter(out, "file_cache_evictions_total", "Files evicted from the cache.", fileCache.getEvictions());
+        appendGauge(out, "file_cache_bytes", "Bytes held by the file cache.", fileCache.getCurrentSize());
+        appendGauge(out, "file_cache_entries", "Files held by the file cache.", fileCache.getEntryCount());
+        appendGauge(out, "document_root_files", "Files in the document root index.", this.server.getDocumentRoot().getFileCount());
+        appendCounter(out, "buffer_pool_allocations_total", "I/O buffers allocated because none was pooled.", this.server.getBufferPool().getAllocations());
+        appendGauge(out, "buffer_pool_shared_buffers", "I/O buffers waiting in the shared pool.", this.server.getBufferPool().getSharedBuffers());
+        if (this.server.getTlsSettings() != null) {
+            appendHistogram(out, "tls_handshake_seconds", "Time to complete the TLS handshake of a new connection.", this.tlsHandshakeTimes);
+            out.append("# HELP tls_handshakes_total Completed TLS handshakes, by whether the session was resumed.\n");
+            out.append("# TYPE tls_handshakes_total counter\n");
+            out.append("tls_handshakes_total{resumed=\"false\"} ").append(this.fullTlsHandshakes.sum()).append('\n');
+            out.append("tls_handshakes_total{resumed=\"true\"} ").append(this.resumedTlsHandshakes.sum()).append('\n');
+            appendCounter(out, "tls_handshake_failures_total", "TLS handshakes that failed or were abandoned.", this.failedTlsHandshakes.sum());
+        }
+        ReverseProxy reverseProxy = this.server.getReverseProxy();
+        if (reverseProxy != null) {
+            appendGauge(out, "proxy_active_exchanges", "Requests being forwarded to an upstream server.", reverseProxy.getActiveExchanges());
+            appendGauge(out, "proxy_idle_connections", "Pooled keep-alive connections to upstream servers.", reverseProxy.getIdleConnections());
+        }
+        appendCounter(out, "log_dropped_entries_total", "Log entries dropped because the log buffer was full.", this.server.getLog().getDroppedEntries());
+
+        ExecutorService executor = this.server.getExecutorService();
+        if (executor instanceof ThreadPoolExecutor pool) {
+            appendGauge(out, "executor_queue_depth", "Connections waiting for a worker thread.", pool.getQueue().size());
+            appendGauge(out, "executor_active_threads", "Worker threads serving a connection.", pool.getActiveCount());
+            appendGauge(out, "executor_pool_size", "Worker threads started.", pool.getPoolSize());
+        } else {
+            // One virtual thread per connection, those waiting for a connection permit are the queue
+            appendGauge(out, "executor_queue_depth", "Connections waiting for a worker thread.", this.server.getWaitingConnections());
+            appendGauge(out, "executor_active_threads", "Worker threads serving a connection.", this.openConnections.sum());
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        appendHistogramSeries(out, name, "", histogram);
+    }
+
+    // labelPrefix is empty or ends with a comma, the le label is appended to it
+    private static void appendHistogramSeries(StringBuilder out, String name, String labelPrefix, LatencyHistogram histogram) {
+        long count = histogram.getCount();
+        long[] cumulativeCounts = histogram.cumulativeCounts(EXPORTED_BOUNDS);
+        for (int i = 0; i < EXPORTED_BOUNDS.length; i++) {
+            out.append(name).append("_bucket{").append(labelPrefix).append("le=\"").append(seconds(EXPORTED_BOUNDS[i])).append("\"} ").append(cumulativeCounts[i]).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labelPrefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        String labels = labelPrefix.isEmpty() ? "" : "{" + labelPrefix.substring(0, labelPrefix.length() - 1) + "}";
+        out.append(name).append("_sum").append(labels).append(' ').append(seconds(histogram.getSumMicros())).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+    }
+
+    private static void appendCounter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendGauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1_000_000.0);
+    }
+}
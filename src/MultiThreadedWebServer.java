@@ -1,48 +1,458 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MultiThreadedWebServer {
+    // Settings reload() applies to the running server, a change to any other one needs a restart
+    private static final Set<String> RELOADABLE_SETTINGS = Set.of("maxThreads", "root", "defaultPage", "keepAliveTimeout", "maxKeepAliveRequests", "logLevel", "drainTimeout", "cacheWarmup");
+    private Properties config;
     private final int portNumber;
     private final ExecutorService executorService;
-    private final String rootDirectory;
-    private final String defaultPage;
+    private final Semaphore connectionPermits;
+    private final AtomicInteger waitingConnections = new AtomicInteger();
+    private final int queueCapacity;
+    private final AdmissionControl admissionControl;
+    private volatile String rootDirectory;
+    private volatile String defaultPage;
+    private volatile int keepAliveTimeout;
+    private volatile int maxKeepAliveRequests;
+    private final String engine;
+    private final int eventLoopThreads;
+    private final RequestProcessor requestProcessor;
+    private final FileCache fileCache;
+    private volatile DocumentRoot documentRoot;
+    private final Compression compression;
+    private final int chunkSize;
+    private final ServerLog log;
+    private final Metrics metrics;
+    private final String metricsPath;
+    private final SocketSettings socketSettings;
+    private final long maxRequestBodySize;
+    private final boolean http2Enabled;
+    private final int http2MaxConcurrentStreams;
+    private final ExecutorService streamExecutor;
+    private final BufferPool bufferPool;
+    private final ReverseProxy reverseProxy;
+    private final TlsSettings tlsSettings;
+    private volatile long drainTimeout;
+    private volatile boolean cacheWarmup;
+    // Connections from the moment they're accepted until they're closed, including the ones waiting for a worker
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+    private List<ServerSocketChannel> serverChannels;
+    private List<ServerSocketChannel> tlsChannels;
+    private NioServer nioServer;
+    private volatile boolean draining;
+    private volatile IOException acceptorFailure;
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
-    public MultiThreadedWebServer(Properties serverConfig) {
+    public MultiThreadedWebServer(Properties serverConfig) throws IOException {
+        this.config = serverConfig;
+        this.log = new ServerLog(serverConfig);
         this.portNumber = Integer.parseInt(serverConfig.getProperty("port"));
         this.rootDirectory = serverConfig.getProperty("root");
         this.defaultPage = serverConfig.getProperty("defaultPage");
-        int maxThreads = Integer.parseInt(serverConfig.getProperty("maxThreads"));
-        this.executorService = Executors.newFixedThreadPool(maxThreads);
+        this.keepAliveTimeout = Integer.parseInt(serverConfig.getProperty("keepAliveTimeout", "5000"));
+        this.maxKeepAliveRequests = Integer.parseInt(serverConfig.getProperty("maxKeepAliveRequests", "100"));
+        // 0 sizes chunks by each socket's send buffer
+        this.chunkSize = Integer.parseInt(serverConfig.getProperty("chunkSize", "0"));
+        this.engine = serverConfig.getProperty("engine", "threads");
+        this.eventLoopThreads = Integer.parseInt(serverConfig.getProperty("eventLoopThreads", "2"));
+        // Connections allowed to wait for a worker, the ones beyond it are answered with 503 by the acceptor
+        this.queueCapacity = Integer.parseInt(serverConfig.getProperty("queueCapacity", "256"));
+        this.admissionControl = new AdmissionControl(serverConfig);
+        this.socketSettings = new SocketSettings(serverConfig);
+        // Larger bodies are answered with 413, bodies are streamed so this bounds work per request rather than memory
+        this.maxRequestBodySize = Long.parseLong(serverConfig.getProperty("maxRequestBodySize", "16777216"));
+        if ("virtual".equalsIgnoreCase(serverConfig.getProperty("executor", "fixed"))) {
+            // One cheap virtual thread per connection, optionally capped by a semaphore instead of maxThreads
+            this.executorService = Executors.newVirtualThreadPerTaskExecutor();
+            int maxConnections = Integer.parseInt(serverConfig.getProperty("maxConnections", "0"));
+            this.connectionPermits = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+        } else {
+            int maxThreads = Integer.parseInt(serverConfig.getProperty("maxThreads"));
+            BlockingQueue<Runnable> queue = this.queueCapacity > 0 ? new ArrayBlockingQueue<>(this.queueCapacity) : new SynchronousQueue<>();
+            this.executorService = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue);
+            this.connectionPermits = null;
+        }
+        // Cleartext HTTP/2 on the threads engine, by prior knowledge or Upgrade: h2c
+        this.http2Enabled = Boolean.parseBoolean(serverConfig.getProperty("http2", "true"));
+        this.http2MaxConcurrentStreams = Integer.parseInt(serverConfig.getProperty("http2MaxConcurrentStreams", "100"));
+        // HTTP/2 streams can't share the fixed pool with the connections: with every worker reading a connection, the
+        // streams those connections wait for would never start. Virtual threads already have no such limit.
+        this.streamExecutor = this.executorService instanceof ThreadPoolExecutor
+                ? Executors.newVirtualThreadPerTaskExecutor() : this.executorService;
+        long fileCacheSize = Long.parseLong(serverConfig.getProperty("fileCacheSize", "67108864"));
+        long fileCacheMaxEntrySize = Long.parseLong(serverConfig.getProperty("fileCacheMaxEntrySize", "1048576"));
+        this.fileCache = new FileCache(fileCacheSize, fileCacheMaxEntrySize);
+        this.documentRoot = new DocumentRoot(this.rootDirectory, this.defaultPage, this.log);
+        this.compression = new Compression(serverConfig);
+        this.bufferPool = new BufferPool(serverConfig);
+        // Forwarding blocks while it waits for the upstream, so only the threads engine forwards
+        ReverseProxy reverseProxy = new ReverseProxy(serverConfig, this.bufferPool);
+        if (reverseProxy.hasRoutes() && "nio".equalsIgnoreCase(this.engine)) {
+            this.log.warn("proxyRoutes are ignored by the nio engine, they're served by the threads engine only");
+        }
+        this.reverseProxy = reverseProxy.hasRoutes() && !"nio".equalsIgnoreCase(this.engine) ? reverseProxy : null;
+        // The TLS socket blocks like the socket under it, so HTTPS is served by the threads engine as well
+        TlsSettings tlsSettings = null;
+        if (Integer.parseInt(serverConfig.getProperty("tlsPort", "0")) > 0 && "nio".equalsIgnoreCase(this.engine)) {
+            this.log.warn("tlsPort is ignored by the nio engine, HTTPS is served by the threads engine only");
+        } else {
+            tlsSettings = new TlsSettings(serverConfig, this.http2Enabled);
+        }
+        this.tlsSettings = tlsSettings != null && tlsSettings.isEnabled() ? tlsSettings : null;
+        this.metrics = new Metrics(this);
+        // Reserved path the metrics are served on instead of a file, empty disables it
+        this.metricsPath = serverConfig.getProperty("metricsPath", "/_metrics").trim();
+        this.requestProcessor = new RequestProcessor(this);
+        // How long stop() waits for the requests in progress before it closes their connections
+        this.drainTimeout = Long.parseLong(serverConfig.getProperty("drainTimeout", "30000"));
+        // Reads the document root into the file cache in the background once the server is listening
+        this.cacheWarmup = Boolean.parseBoolean(serverConfig.getProperty("cacheWarmup", "false"));
     }
 
+    // Serves until stop() is called, or until an acceptor fails
     public void run() throws InternalServerException {
-        String clientAddress;
-        try (ServerSocket serverSocket = new ServerSocket(this.portNumber)) {
-            System.out.println("Server is listening on port " + this.portNumber);
-            while (true) {
-                Socket clientSessionSocket = serverSocket.accept();
-                clientSessionSocket.setSoTimeout(10000); //Avoid indefinably wait on read() when content-length > actual content
-                clientAddress = clientSessionSocket.getInetAddress() + ":" + clientSessionSocket.getPort();
-                System.out.println("Accepted new connection from " + clientAddress);
-                try {
-                    ClientHandler clientHandler = new ClientHandler(clientSessionSocket, this);
-                    this.executorService.execute(clientHandler);
-                } catch (ClientHandlerException e) {
-                    System.out.println("[" + clientAddress + "]: Failed to initialize client socket streams");
+        start();
+        try {
+            this.stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+        }
+        if (this.acceptorFailure != null) {
+            throw new InternalServerException(this.acceptorFailure);
+        }
+    }
+
+    // Binds the port and returns once the server accepts connections, the acceptors run on their own threads
+    public void start() throws InternalServerException {
+        try {
+            if ("nio".equalsIgnoreCase(this.engine)) {
+                // Non-blocking engine: a few selector threads instead of a thread per connection
+                this.nioServer = new NioServer(this);
+                this.nioServer.start();
+            } else {
+                // Accepting through a channel gives every socket a SocketChannel, which file bodies are sent to with sendfile
+                this.serverChannels = this.socketSettings.bind(this.portNumber, this.log);
+                if (this.tlsSettings != null) {
+                    this.tlsChannels = this.socketSettings.bind(this.tlsSettings.getPort(), this.log);
+                }
+                startAcceptors(this.serverChannels, false);
+                this.log.info("Server is listening on port " + this.portNumber + " (" + this.serverChannels.size() + " acceptors)");
+                if (this.tlsChannels != null) {
+                    startAcceptors(this.tlsChannels, true);
+                    this.log.info("Server is listening for HTTPS on port " + this.tlsSettings.getPort() + " (" + this.tlsChannels.size() + " acceptors)");
                 }
             }
         } catch (IOException e) {
-            System.out.println("Failed to start server: " + e.getMessage());
+            this.log.error("Failed to start server: " + e.getMessage());
+            this.draining = true;
+            if (this.serverChannels != null) {
+                SocketSettings.close(this.serverChannels);
+            }
+            if (this.tlsChannels != null) {
+                SocketSettings.close(this.tlsChannels);
+            }
+            this.executorService.shutdown();
+            this.streamExecutor.shutdown();
+            closeResources();
+            this.stopped.countDown();
             throw new InternalServerException(e);
+        }
+        if (this.cacheWarmup) {
+            warmUpCache(this.documentRoot);
+        }
+    }
+
+    private void startAcceptors(List<ServerSocketChannel> channels, boolean secure) {
+        for (int i = 0; i < channels.size(); i++) {
+            ServerSocketChannel serverChannel = channels.get(i);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    acceptConnections(serverChannel, secure);
+                } catch (IOException e) {
+                    onAcceptorFailure(e);
+                }
+            }, (secure ? "tls-acceptor-" : "acceptor-") + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    // An acceptor only fails on a closed channel when the server is stopping, any other failure stops the server
+    void onAcceptorFailure(IOException e) {
+        if (this.draining) {
+            return;
+        }
+        this.log.error("Acceptor failed: " + e.getMessage());
+        this.acceptorFailure = e;
+        stop();
+    }
+
+    public void stop() {
+        stop(this.drainTimeout);
+    }
+
+    // Stops accepting, lets the connections finish the requests they're serving and closes them. Connections still
+    // busy after the drain timeout are closed anyway. Returns once the server is stopped, also when called again.
+    public void stop(long drainTimeoutMillis) {
+        synchronized (this) {
+            if (this.draining) {
+                awaitStopped();
+                return;
+            }
+            this.draining = true;
+        }
+        this.log.info("Stopping, waiting up to " + drainTimeoutMillis + " ms for requests in progress");
+        if (this.nioServer != null) {
+            this.nioServer.stop(drainTimeoutMillis);
+        } else {
+            if (this.serverChannels != null) {
+                SocketSettings.close(this.serverChannels);
+            }
+            if (this.tlsChannels != null) {
+                SocketSettings.close(this.tlsChannels);
+            }
+            // Idle connections close right away, busy ones after their response
+            for (ClientHandler connection : this.connections) {
+                connection.drain();
+            }
+            if (!awaitConnectionsClosed(System.currentTimeMillis() + drainTimeoutMillis)) {
+                this.log.warn("Closing " + this.connections.size() + " connections still busy after the drain timeout");
+                for (ClientHandler connection : this.connections) {
+                    connection.close();
+                }
+            }
+            // Connections wait for their HTTP/2 streams, so nothing is running anymore unless it was forced to close
+            this.executorService.shutdownNow();
+            this.streamExecutor.shutdownNow();
+        }
+        this.log.info("Server stopped");
+        closeResources();
+        this.stopped.countDown();
+    }
+
+    private boolean awaitConnectionsClosed(long deadline) {
+        synchronized (this.connections) {
+            long wait;
+            while (!this.connections.isEmpty() && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    this.connections.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return this.connections.isEmpty();
+        }
+    }
+
+    private void awaitStopped() {
+        try {
+            this.stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    // Called by a ClientHandler once its connection is closed
+    void connectionClosed(ClientHandler connection) {
+        this.connections.remove(connection);
+        if (this.draining) {
+            synchronized (this.connections) {
+                this.connections.notifyAll();
+            }
+        }
+    }
+
+    // Applies the reloadable settings to the running server without touching the connections, the others are only
+    // reported. Every value is parsed before any is applied, so an invalid file changes nothing.
+    public synchronized void reload(Properties newConfig) throws IOException {
+        // Only the fixed pool has a size, virtual threads are started per connection
+        ThreadPoolExecutor pool = this.executorService instanceof ThreadPoolExecutor fixedPool ? fixedPool : null;
+        int maxThreads = pool != null ? Integer.parseInt(newConfig.getProperty("maxThreads")) : 0;
+        if (pool != null && maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1");
+        }
+        int keepAliveTimeout = Integer.parseInt(newConfig.getProperty("keepAliveTimeout", "5000"));
+        int maxKeepAliveRequests = Integer.parseInt(newConfig.getProperty("maxKeepAliveRequests", "100"));
+        LogLevel logLevel = LogLevel.fromName(newConfig.getProperty("logLevel", "info"));
+        long drainTimeout = Long.parseLong(newConfig.getProperty("drainTimeout", "30000"));
+        String rootDirectory = newConfig.getProperty("root");
+        String defaultPage = newConfig.getProperty("defaultPage");
+        boolean cacheWarmup = Boolean.parseBoolean(newConfig.getProperty("cacheWarmup", "false"));
+
+        // The new root is indexed before it replaces the old one, requests keep being served from the old one meanwhile
+        boolean rootChanged = !Objects.equals(rootDirectory, this.rootDirectory) || !Objects.equals(defaultPage, this.defaultPage);
+        if (rootChanged) {
+            DocumentRoot previousRoot = this.documentRoot;
+            this.documentRoot = new DocumentRoot(rootDirectory, defaultPage, this.log);
+            this.rootDirectory = rootDirectory;
+            this.defaultPage = defaultPage;
+            previousRoot.close();
+        }
+        if (pool != null && pool.getMaximumPoolSize() != maxThreads) {
+            // The core size can't exceed the maximum at any point. Surplus workers end once their connection is done.
+            if (maxThreads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(maxThreads);
+                pool.setCorePoolSize(maxThreads);
+            } else {
+                pool.setCorePoolSize(maxThreads);
+                pool.setMaximumPoolSize(maxThreads);
+            }
+        }
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+        this.requestProcessor.updateKeepAliveHeader();
+        this.log.setLevel(logLevel);
+        this.drainTimeout = drainTimeout;
+        // A new root starts cold, and so does the cache when warm-up was just turned on
+        boolean warmUp = cacheWarmup && (rootChanged || !this.cacheWarmup);
+        this.cacheWarmup = cacheWarmup;
+        if (warmUp) {
+            warmUpCache(this.documentRoot);
+        }
+
+        Set<String> keys = new TreeSet<>(this.config.stringPropertyNames());
+        keys.addAll(newConfig.stringPropertyNames());
+        for (String key : keys) {
+            if (!RELOADABLE_SETTINGS.contains(key) && !Objects.equals(this.config.getProperty(key), newConfig.getProperty(key))) {
+                this.log.warn("Changed setting " + key + " takes effect after a restart");
+            }
+        }
+        this.config = newConfig;
+        this.log.info("Configuration reloaded");
+    }
+
+    // Reads files into the file cache ahead of their first request, smallest first so as many as possible fit, and
+    // only as long as nothing has to be evicted for them. Runs in the background, requests are served meanwhile.
+    private void warmUpCache(DocumentRoot documentRoot) {
+        Thread warmer = new Thread(() -> {
+            long startNanos = System.nanoTime();
+            List<CachedFile> files = new ArrayList<>(documentRoot.getFiles());
+            files.sort(Comparator.comparingLong(CachedFile::getSize));
+            int loadedFiles = 0;
+            long loadedBytes = 0;
+            for (CachedFile file : files) {
+                // Stopped, or the root was swapped by a reload which warms up the new one
+                if (this.draining || this.documentRoot != documentRoot) {
+                    return;
+                }
+                try {
+                    if (!this.fileCache.preload(file)) {
+                        break;
+                    }
+                    loadedFiles++;
+                    loadedBytes += file.getSize();
+                } catch (IOException e) {
+                    this.log.debug("Failed to warm up the cache with " + file.getPath() + ": " + e.getMessage());
+                }
+            }
+            this.log.info("Warmed up the file cache with " + loadedFiles + " files (" + loadedBytes + " bytes) in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+        }, "cache-warmup");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    private void closeResources() {
+        if (this.reverseProxy != null) {
+            this.reverseProxy.close();
+        }
+        try {
+            this.documentRoot.close();
+        } catch (IOException e) {
+            this.log.warn("Failed to stop watching the document root: " + e.getMessage());
+        }
+        this.log.close();
+    }
+
+    // Only admission and dispatch happen here, the connection is set up by the worker that serves it. That includes
+    // the TLS handshake of a secure one.
+    private void acceptConnections(ServerSocketChannel serverChannel, boolean secure) throws IOException {
+        while (true) {
+            SocketChannel clientChannel = serverChannel.accept();
+            long acceptedNanos = System.nanoTime();
+            String remoteHost = clientChannel.socket().getInetAddress().getHostAddress();
+            if (!this.admissionControl.tryAcquire(remoteHost)) {
+                this.log.debug("[" + remoteHost + "]: Too many connections from client, rejecting");
+                this.metrics.recordRejected(Metrics.REJECTED_PER_IP);
+                reject(clientChannel, secure);
+                continue;
+            }
+            ClientHandler clientHandler = new ClientHandler(clientChannel.socket(), this, remoteHost, acceptedNanos, secure);
+            this.connections.add(clientHandler);
+            if (!dispatch(clientHandler)) {
+                this.connections.remove(clientHandler);
+                this.log.debug("[" + remoteHost + "]: Work queue is full, rejecting");
+                this.admissionControl.release(remoteHost);
+                this.metrics.recordRejected(Metrics.REJECTED_QUEUE_FULL);
+                reject(clientChannel, secure);
+                continue;
+            }
+            this.metrics.recordAccept(acceptedNanos);
+        }
+    }
+
+    // A 503 can't be sent before a handshake, which the acceptor doesn't do, so a secure connection is just closed
+    private void reject(SocketChannel clientChannel, boolean secure) {
+        if (!secure) {
+            this.admissionControl.reject(clientChannel);
+            return;
+        }
+        try {
+            clientChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Returns false if the connection can't be queued and should be shed
+    private boolean dispatch(ClientHandler clientHandler) {
+        if (this.connectionPermits == null) {
+            try {
+                this.executorService.execute(clientHandler);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+        if (this.connectionPermits.tryAcquire()) {
+            this.executorService.execute(() -> runWithPermit(clientHandler));
+            return true;
+        }
+        if (this.waitingConnections.get() >= this.queueCapacity) {
+            return false;
+        }
+        // Waiting for a permit blocks only the connection's own virtual thread, never the accept loop
+        this.waitingConnections.incrementAndGet();
+        this.executorService.execute(() -> {
+            this.connectionPermits.acquireUninterruptibly();
+            this.waitingConnections.decrementAndGet();
+            runWithPermit(clientHandler);
+        });
+        return true;
+    }
+
+    private void runWithPermit(ClientHandler clientHandler) {
+        try {
+            clientHandler.run();
         } finally {
-            this.executorService.shutdown();
+            this.connectionPermits.release();
         }
     }
 
+    public int getPortNumber() {
+        return portNumber;
+    }
+
     public String getRootDirectory() {
         return rootDirectory;
     }
@@ -50,4 +460,99 @@ public class MultiThreadedWebServer {
     public String getDefaultPage() {
         return defaultPage;
     }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    public int getReadTimeout() {
+        return socketSettings.getReadTimeout();
+    }
+
+    public long getMaxRequestBodySize() {
+        return maxRequestBodySize;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    public ExecutorService getStreamExecutor() {
+        return streamExecutor;
+    }
+
+    public SocketSettings getSocketSettings() {
+        return socketSettings;
+    }
+
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public DocumentRoot getDocumentRoot() {
+        return documentRoot;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    // Null without proxy routes
+    public ReverseProxy getReverseProxy() {
+        return reverseProxy;
+    }
+
+    // Null without a tlsPort
+    public TlsSettings getTlsSettings() {
+        return tlsSettings;
+    }
+
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    // Connections waiting for a permit when maxConnections caps the virtual threads
+    public int getWaitingConnections() {
+        return this.waitingConnections.get();
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public ServerLog getLog() {
+        return log;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public RequestProcessor getRequestProcessor() {
+        return requestProcessor;
+    }
 }
@@ -0,0 +1,352 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+public class NioConnection {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final MultiThreadedWebServer server;
+    private final String clientAddress;
+    private final String remoteHost;
+    private final ServerLog log;
+    private final Metrics metrics;
+    private final Deque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+    // Only one response is in flight, so the buffer is free again once pendingOutput is drained
+    private final ResponseBuffer responseBuffer;
+    private final int chunkSize;
+    private FileChannel pendingFile;
+    private long pendingFilePosition;
+    private long pendingFileEnd;
+    private boolean pendingFileChunked;
+    // A producer's body, pulled a piece at a time like a chunked file
+    private IncrementalBody pendingBody;
+    private boolean pendingBodyChunked;
+    private ChunkedOutputStream chunkEncoder;
+    private ByteBuffer chunkData;
+    private ByteBuffer input;
+    private final BufferPool bufferPool;
+    private final HTTPRequestParser parser;
+    private int servedRequests;
+    private boolean inputShutdown;
+    private boolean closeAfterWrite;
+    private long lastActivity;
+    // The response being written, logged once its last byte was handed to the socket
+    private HTTPRequest inFlightRequest;
+    private HTTPResponse inFlightResponse;
+    // Recycled for every request, the next one is only processed once the response in flight was written
+    private final HTTPResponse recycledResponse = new HTTPResponse();
+    private long inFlightStartNanos;
+    private long inFlightWriteStartNanos;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    public NioConnection(SocketChannel channel, SelectionKey key, MultiThreadedWebServer server) throws IOException {
+        this.channel = channel;
+        this.key = key;
+        this.server = server;
+        this.clientAddress = String.valueOf(channel.getRemoteAddress());
+        this.remoteHost = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        this.log = server.getLog();
+        this.metrics = server.getMetrics();
+        this.parser = new HTTPRequestParser(server.getMaxRequestBodySize());
+        this.bufferPool = server.getBufferPool();
+        this.input = ByteBuffer.wrap(this.bufferPool.acquire(INITIAL_BUFFER_SIZE));
+        this.responseBuffer = new ResponseBuffer(this.bufferPool);
+        this.chunkSize = ChunkedOutputStream.chunkSizeFor(server.getChunkSize(), channel.socket().getSendBufferSize());
+        this.lastActivity = System.currentTimeMillis();
+        this.metrics.connectionOpened();
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("Accepted new connection from " + this.clientAddress);
+        }
+    }
+
+    public String getClientAddress() {
+        return this.clientAddress;
+    }
+
+    public void onReadable() throws IOException {
+        if (!this.input.hasRemaining()) {
+            growInputBuffer();
+        }
+        int read = this.channel.read(this.input);
+        if (read == -1) {
+            // Answer whatever complete requests are already buffered, then close
+            this.inputShutdown = true;
+        } else {
+            this.lastActivity = System.currentTimeMillis();
+        }
+        processBufferedRequests();
+    }
+
+    public void onWritable() throws IOException {
+        this.lastActivity = System.currentTimeMillis();
+        flush();
+        if (!hasPendingOutput() && this.channel.isOpen()) {
+            // Continue with pipelined requests that waited for the previous response
+            processBufferedRequests();
+        }
+    }
+
+    public boolean isIdleTimedOut(long now) {
+        int timeout = isBetweenRequests() ? this.server.getKeepAliveTimeout() : this.server.getReadTimeout();
+        return now - this.lastActivity > timeout;
+    }
+
+    // Kept alive after a response, with nothing of the next request received yet and nothing left to write
+    public boolean isBetweenRequests() {
+        return this.servedRequests > 0 && this.input.position() == 0 && !this.parser.isReadingBody() && !hasPendingOutput();
+    }
+
+    public void close() {
+        if (!this.channel.isOpen()) {
+            return;
+        }
+        this.key.cancel();
+        this.metrics.connectionClosed();
+        this.server.getAdmissionControl().release(this.remoteHost);
+        try {
+            this.log.debug("[" + this.clientAddress + "]: Closing client connection ...");
+            closePendingBody();
+            this.channel.close();
+        } catch (IOException e) {
+            this.log.warn("[" + this.clientAddress + "]: Failed to close client channel");
+        }
+        // Nothing is read into or written from them once the channel is closed
+        this.bufferPool.release(this.input.array());
+        this.responseBuffer.release();
+    }
+
+    private void processBufferedRequests() throws IOException {
+        // Only one response is in flight at a time, so pipelined responses keep their order
+        while (!hasPendingOutput() && !this.closeAfterWrite) {
+            if (this.parser.isComplete()) {
+                // The previous response is fully written and logged, its request can be recycled
+                this.parser.reset();
+            }
+            boolean complete;
+            try {
+                complete = this.parser.parse(this.input.array(), 0, this.input.position());
+            } catch (BadRequestException e) {
+                this.log.debug("[" + this.clientAddress + "]: " + e.getMessage());
+                // The rest of the stream can't be trusted after a malformed request
+                this.closeAfterWrite = true;
+                HTTPRequest badRequest = this.parser.getRequest();
+                queueResponse(badRequest, this.server.getRequestProcessor().handleBadRequestError(badRequest, e.getStatusCode()), false, System.nanoTime());
+                flush();
+                break;
+            }
+
+            // Drop what the parser is done with, its offsets start over at the bytes left
+            int consumed = this.parser.getConsumed();
+            if (consumed > 0) {
+                this.input.flip();
+                this.input.position(consumed);
+                this.input.compact();
+            }
+            if (!complete) {
+                break;
+            }
+            HTTPRequest request = this.parser.getRequest();
+            this.metrics.recordParse(this.parser.getParseNanos());
+            handleRequest(request);
+            flush();
+        }
+
+        if (this.inputShutdown && !hasPendingOutput() && this.channel.isOpen()) {
+            close();
+        }
+    }
+
+    private void handleRequest(HTTPRequest request) throws IOException {
+        RequestProcessor requestProcessor = this.server.getRequestProcessor();
+        this.servedRequests++;
+        boolean keepAlive = this.servedRequests < this.server.getMaxKeepAliveRequests() && request.isKeepAlive() && !this.server.isDraining();
+        long startNanos = System.nanoTime();
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("[" + this.clientAddress + "]: HTTP request Headers: \n" + request.getRawHeaders());
+        }
+
+        this.recycledResponse.reset();
+        HTTPResponse response = requestProcessor.process(request, this.recycledResponse);
+        // After a 505 to the HTTP/2 preface only HTTP/2 frames follow, a close-delimited body ends with the connection
+        if (response.getStatusCode() == 500 || response.getStatusCode() == 505 || response.isCloseDelimited()) {
+            keepAlive = false;
+        }
+        queueResponse(request, response, keepAlive, startNanos);
+        if (!keepAlive) {
+            this.closeAfterWrite = true;
+        }
+    }
+
+    private void queueResponse(HTTPRequest request, HTTPResponse response, boolean keepAlive, long startNanos) throws IOException {
+        this.server.getRequestProcessor().addConnectionHeaders(response, keepAlive);
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("[" + this.clientAddress + "]: Response Headers: \n" + response.getHeaders());
+        }
+        this.inFlightRequest = request;
+        this.inFlightResponse = response;
+        this.inFlightStartNanos = startNanos;
+        response.setChunkSize(this.chunkSize);
+        this.inFlightWriteStartNanos = System.nanoTime();
+        this.pendingOutput.addAll(Arrays.asList(response.serialize(this.responseBuffer)));
+        FileRegion fileBody = response.getFileBody();
+        if (fileBody != null && !response.isHeadResponse()) {
+            // Only the headers are buffered, the file is sent from the page cache (or chunk by chunk) as the socket accepts it
+            this.pendingFile = fileBody.open();
+            this.pendingFilePosition = fileBody.getPosition();
+            this.pendingFileEnd = fileBody.getPosition() + fileBody.getCount();
+            this.pendingFileChunked = response.isChunkedResponse();
+        }
+        BodyProducer bodyProducer = response.getBodyProducer();
+        if (bodyProducer != null && response.hasBodyToSend()) {
+            this.pendingBody = bodyProducer.openIncremental();
+            if (this.pendingBody == null) {
+                throw new IllegalStateException("Response body can't be sent by the nio engine");
+            }
+            this.pendingBodyChunked = response.isChunkedResponse();
+        }
+    }
+
+    private boolean hasPendingOutput() {
+        return !this.pendingOutput.isEmpty() || this.pendingFile != null || this.pendingBody != null;
+    }
+
+    private void closePendingBody() throws IOException {
+        if (this.pendingFile != null) {
+            this.pendingFile.close();
+            this.pendingFile = null;
+        }
+        if (this.pendingBody != null) {
+            this.pendingBody.close();
+            this.pendingBody = null;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (!this.pendingOutput.isEmpty()) {
+            // Headers and body go out in one gathering write
+            this.channel.write(this.pendingOutput.toArray(new ByteBuffer[0]));
+            while (!this.pendingOutput.isEmpty() && !this.pendingOutput.peek().hasRemaining()) {
+                this.pendingOutput.poll();
+            }
+            if (!this.pendingOutput.isEmpty()) {
+                // Socket buffer is full - stop reading and wait until the client drains it
+                this.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        while (this.pendingFile != null) {
+            if (this.pendingFileChunked) {
+                // Encode the next chunk only once the previous one was fully written
+                if (!queueNextFileChunk()) {
+                    return;
+                }
+                continue;
+            }
+            long written = this.pendingFile.transferTo(this.pendingFilePosition, this.pendingFileEnd - this.pendingFilePosition, this.channel);
+            this.pendingFilePosition += written;
+            if (this.pendingFilePosition >= this.pendingFileEnd) {
+                closePendingBody();
+            } else if (written == 0) {
+                if (this.pendingFilePosition >= this.pendingFile.size()) {
+                    throw new EOFException("File was truncated while being sent");
+                }
+                this.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        while (this.pendingBody != null) {
+            if (!queueNextBodyPiece()) {
+                return;
+            }
+        }
+
+        if (this.inFlightResponse != null) {
+            this.log.access(this.remoteHost, this.inFlightRequest, this.inFlightResponse, this.inFlightStartNanos);
+            this.metrics.recordRequest(this.inFlightRequest, this.inFlightResponse, this.inFlightStartNanos, this.inFlightWriteStartNanos);
+            this.inFlightRequest = null;
+            this.inFlightResponse = null;
+        }
+        if (this.closeAfterWrite) {
+            close();
+        } else {
+            this.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // Returns false if the chunk couldn't be fully written yet
+    private boolean queueNextFileChunk() throws IOException {
+        // The headers were already written, so the response buffer is free to encode the chunk into
+        if (this.chunkEncoder == null) {
+            this.chunkEncoder = new ChunkedOutputStream(this.responseBuffer, this.chunkSize);
+        }
+        if (this.chunkData == null) {
+            this.chunkData = ByteBuffer.allocate(this.chunkSize);
+        }
+        this.responseBuffer.reset();
+        long remaining = this.pendingFileEnd - this.pendingFilePosition;
+        if (remaining > 0) {
+            this.chunkData.clear().limit((int) Math.min(this.chunkSize, remaining));
+            int read = this.pendingFile.read(this.chunkData, this.pendingFilePosition);
+            if (read == -1) {
+                throw new EOFException("File was truncated while being sent");
+            }
+            this.chunkEncoder.write(this.chunkData.array(), 0, read);
+            this.pendingFilePosition += read;
+        }
+        if (this.pendingFilePosition < this.pendingFileEnd) {
+            this.chunkEncoder.flush();
+        } else {
+            // The last data chunk and the terminating chunk are written together
+            this.chunkEncoder.finish();
+            closePendingBody();
+        }
+        return writeResponseBuffer();
+    }
+
+    // Same as a chunked file, one piece of the body at a time. Returns false if the piece couldn't be fully written yet
+    private boolean queueNextBodyPiece() throws IOException {
+        if (this.pendingBodyChunked && this.chunkEncoder == null) {
+            this.chunkEncoder = new ChunkedOutputStream(this.responseBuffer, this.chunkSize);
+        }
+        this.responseBuffer.reset();
+        boolean more = this.pendingBody.writeNext(this.pendingBodyChunked ? this.chunkEncoder : this.responseBuffer, this.chunkSize);
+        if (!more) {
+            closePendingBody();
+        }
+        if (this.pendingBodyChunked) {
+            if (more) {
+                this.chunkEncoder.flush();
+            } else {
+                this.chunkEncoder.finish();
+            }
+        }
+        return writeResponseBuffer();
+    }
+
+    private boolean writeResponseBuffer() throws IOException {
+        ByteBuffer piece = this.responseBuffer.toByteBuffer();
+        this.channel.write(piece);
+        if (piece.hasRemaining()) {
+            this.pendingOutput.add(piece);
+            this.key.interestOps(SelectionKey.OP_WRITE);
+            return false;
+        }
+        return true;
+    }
+
+    private void growInputBuffer() {
+        ByteBuffer grown = ByteBuffer.wrap(this.bufferPool.acquire(this.input.capacity() * 2));
+        this.input.flip();
+        grown.put(this.input);
+        this.bufferPool.release(this.input.array());
+        this.input = grown;
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class NioEventLoop implements Runnable {
+    private final MultiThreadedWebServer server;
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile boolean draining;
+    // Set once run() is over, for whatever reason, new connections have to go to another loop then
+    private volatile boolean exited;
+    private static final int IDLE_CHECK_INTERVAL = 1000;
+
+    public NioEventLoop(MultiThreadedWebServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    // Called from the acceptor thread, the channel is registered by the event loop itself. Returns false if the loop
+    // has exited, the caller still owns the channel then.
+    public boolean register(SocketChannel clientChannel) {
+        this.pendingChannels.add(clientChannel);
+        // Either the exiting loop closes every channel added before it was marked, or the channel is taken back here
+        if (this.exited && this.pendingChannels.remove(clientChannel)) {
+            return false;
+        }
+        this.selector.wakeup();
+        return true;
+    }
+
+    // Closes the idle connections and lets the others finish their response, the loop ends once none is left
+    public void drain() {
+        this.draining = true;
+        this.selector.wakeup();
+    }
+
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (this.running) {
+                this.selector.select(IDLE_CHECK_INTERVAL);
+                registerPendingChannels();
+
+                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException e) {
+                        this.server.getLog().warn("[" + connection.getClientAddress() + "]: Failed to respond to client");
+                        connection.close();
+                    } catch (Throwable e) {
+                        // A bug or an OutOfMemoryError while serving one connection mustn't take the loop's others down
+                        this.server.getLog().error("[" + connection.getClientAddress() + "]: Closing connection after an unexpected error: " + e);
+                        connection.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (this.draining) {
+                    closeIdleConnections(now);
+                    if (!hasOpenConnections()) {
+                        break;
+                    }
+                } else if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } catch (Throwable e) {
+            this.server.getLog().error("Event loop failed: " + e);
+        } finally {
+            this.exited = true;
+            SocketChannel pendingChannel;
+            while ((pendingChannel = this.pendingChannels.poll()) != null) {
+                closePending(pendingChannel);
+            }
+            for (SelectionKey key : this.selector.keys()) {
+                // A channel that failed to register leaves a key without a connection, it was closed already
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                this.server.getLog().warn("Failed to close event loop selector");
+            }
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel clientChannel;
+        while ((clientChannel = this.pendingChannels.poll()) != null) {
+            try {
+                this.server.getSocketSettings().configure(clientChannel);
+                clientChannel.configureBlocking(false);
+                SelectionKey key = clientChannel.register(this.selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(clientChannel, key, this.server));
+            } catch (IOException e) {
+                this.server.getLog().warn("Failed to register client connection");
+                closePending(clientChannel);
+            } catch (Throwable e) {
+                this.server.getLog().error("Failed to register client connection: " + e);
+                closePending(clientChannel);
+            }
+        }
+    }
+
+    private void closePending(SocketChannel clientChannel) {
+        this.server.getAdmissionControl().release(clientChannel.socket().getInetAddress().getHostAddress());
+        try {
+            clientChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : this.selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null && (connection.isIdleTimedOut(now) || (this.draining && connection.isBetweenRequests()))) {
+                connection.close();
+            }
+        }
+    }
+
+    // Closed connections keep their cancelled key in the selector until its next select
+    private boolean hasOpenConnections() {
+        for (SelectionKey key : this.selector.keys()) {
+            if (key.isValid()) {
+                return true;
+            }
+        }
+        return !this.pendingChannels.isEmpty();
+    }
+}
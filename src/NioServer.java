@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+public class NioServer {
+    private final MultiThreadedWebServer server;
+    private final NioEventLoop[] eventLoops;
+    private final Thread[] eventLoopThreads;
+    private List<ServerSocketChannel> serverChannels;
+
+    public NioServer(MultiThreadedWebServer server) {
+        this.server = server;
+        this.eventLoops = new NioEventLoop[Math.max(1, server.getEventLoopThreads())];
+        this.eventLoopThreads = new Thread[this.eventLoops.length];
+    }
+
+    // Binds the port and starts the event loops and acceptors, returns once connections are accepted
+    public void start() throws IOException {
+        this.serverChannels = this.server.getSocketSettings().bind(this.server.getPortNumber(), this.server.getLog());
+        try {
+            for (int i = 0; i < this.eventLoops.length; i++) {
+                this.eventLoops[i] = new NioEventLoop(this.server);
+                this.eventLoopThreads[i] = new Thread(this.eventLoops[i], "nio-event-loop-" + i);
+                this.eventLoopThreads[i].setDaemon(true);
+                this.eventLoopThreads[i].start();
+            }
+        } catch (IOException e) {
+            SocketSettings.close(this.serverChannels);
+            shutdownEventLoops();
+            throw e;
+        }
+
+        for (int i = 0; i < this.serverChannels.size(); i++) {
+            ServerSocketChannel serverChannel = this.serverChannels.get(i);
+            int firstEventLoop = i;
+            Thread acceptor = new Thread(() -> {
+                try {
+                    acceptConnections(serverChannel, firstEventLoop);
+                } catch (IOException e) {
+                    this.server.onAcceptorFailure(e);
+                }
+            }, "acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        this.server.getLog().info("Server is listening on port " + this.server.getPortNumber() + " (NIO, " + this.serverChannels.size() + " acceptors, " + this.eventLoops.length + " event loops)");
+    }
+
+    // Stops accepting and lets every event loop finish its responses in progress, up to the drain timeout
+    public void stop(long drainTimeoutMillis) {
+        SocketSettings.close(this.serverChannels);
+        for (NioEventLoop eventLoop : this.eventLoops) {
+            eventLoop.drain();
+        }
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        try {
+            for (Thread eventLoopThread : this.eventLoopThreads) {
+                eventLoopThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Closes the connections of the loops that didn't get done in time
+        shutdownEventLoops();
+    }
+
+    private void shutdownEventLoops() {
+        for (NioEventLoop eventLoop : this.eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+            }
+        }
+    }
+
+    // Accepted connections are spread round-robin over the event loops, which set them up and own them from then on
+    private void acceptConnections(ServerSocketChannel serverChannel, int firstEventLoop) throws IOException {
+        int nextEventLoop = firstEventLoop % this.eventLoops.length;
+        AdmissionControl admissionControl = this.server.getAdmissionControl();
+        while (true) {
+            SocketChannel clientChannel = serverChannel.accept();
+            long acceptedNanos = System.nanoTime();
+            // There is no work queue to bound here, connections cost a few buffers, so only clients hogging them are shed
+            if (!admissionControl.tryAcquire(clientChannel.socket().getInetAddress().getHostAddress())) {
+                this.server.getMetrics().recordRejected(Metrics.REJECTED_PER_IP);
+                admissionControl.reject(clientChannel);
+                continue;
+            }
+            // A loop that died is skipped, its connections were closed with it
+            boolean registered = false;
+            for (int attempt = 0; attempt < this.eventLoops.length && !registered; attempt++) {
+                registered = this.eventLoops[nextEventLoop].register(clientChannel);
+                nextEventLoop = (nextEventLoop + 1) % this.eventLoops.length;
+            }
+            if (!registered) {
+                this.server.getLog().error("No event loop is running, rejecting connection");
+                admissionControl.release(clientChannel.socket().getInetAddress().getHostAddress());
+                admissionControl.reject(clientChannel);
+                continue;
+            }
+            this.server.getMetrics().recordAccept(acceptedNanos);
+        }
+    }
+}
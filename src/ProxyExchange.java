@@ -0,0 +1,410 @@
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// A request forwarded to an upstream server. The request head is sent as soon as the client's headers are parsed and
+// the body follows while it's read from the client, the response then streams back through a BodyProducer. Neither
+// body is ever held as a whole.
+public class ProxyExchange implements BodyConsumer {
+    // They describe the connection they arrived on, not the message. Expect isn't passed on either, the upstream's
+    // 100 Continue would have nowhere to go.
+    private static final Set<String> HOP_BY_HOP_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "te", "trailer", "transfer-encoding", "upgrade", "expect");
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS_SIZE = 64 * 1024;
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+    private static final int CHUNK_SIZE = 8192;
+
+    private final HTTPRequest request;
+    private final String clientHost;
+    private final boolean secure;
+    private final boolean chunkedBody;
+    private final BufferPool bufferPool;
+    private Upstream upstream;
+    // Null once released, or when no upstream accepted the connection
+    private UpstreamConnection connection;
+    private OutputStream body;
+    private boolean bodySent;
+    private boolean finished;
+    private IOException failure;
+    private boolean responseStarted;
+    private boolean chunkedResponse;
+
+    ProxyExchange(HTTPRequest request, String clientHost, boolean secure, boolean bodyWithoutLength, BufferPool bufferPool) {
+        this.request = request;
+        this.clientHost = clientHost;
+        this.secure = secure;
+        this.chunkedBody = request.isChunkedBody() || bodyWithoutLength;
+        this.bufferPool = bufferPool;
+    }
+
+    // Connects to the first upstream that accepts, in the order the balancing chose, and sends the request head. A
+    // failure is kept for readResponse(), the request body is dropped meanwhile.
+    void start(List<Upstream> upstreams) {
+        for (Upstream candidate : upstreams) {
+            this.upstream = candidate;
+            try {
+                this.connection = candidate.acquire(true);
+                this.failure = null;
+                break;
+            } catch (IOException e) {
+                this.failure = e;
+            }
+        }
+        if (this.connection != null) {
+            try {
+                writeHead();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    public Upstream getUpstream() {
+        return this.upstream;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        if (this.connection == null) {
+            return;
+        }
+        try {
+            this.body.write(buffer, offset, length);
+            this.bodySent |= length > 0;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void finish() {
+        this.finished = true;
+        if (this.connection == null) {
+            return;
+        }
+        try {
+            finishBody();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // The client's request failed before it was complete, the upstream connection is left in the middle of it
+    public void abort() {
+        if (this.failure == null) {
+            this.failure = new IOException("Request aborted");
+        }
+        releaseConnection(false);
+    }
+
+    // Waits for the upstream's response and applies its status and headers, the body is streamed when the response is
+    // sent. Throws if no response could be had, a SocketTimeoutException if the upstream didn't answer in time.
+    public void readResponse(HTTPResponse response) throws IOException {
+        if (!this.finished) {
+            // Requests without a body that weren't forwarded by the parser
+            finish();
+        }
+        if (this.connection == null) {
+            throw this.failure != null ? this.failure : new IOException("Request aborted");
+        }
+        try {
+            List<String> fields = new ArrayList<>();
+            int status;
+            try {
+                status = readResponseHead(fields);
+            } catch (IOException e) {
+                if (this.responseStarted || this.bodySent || !this.connection.isReused() || e instanceof SocketTimeoutException) {
+                    throw e;
+                }
+                // The upstream closed the pooled connection while it was idle, the request is sent again on a new one
+                this.upstream.release(this.connection, false);
+                this.connection = null;
+                this.connection = this.upstream.acquire(false);
+                writeHead();
+                finishBody();
+                status = readResponseHead(fields);
+            }
+            applyResponse(response, status, fields);
+        } catch (IOException e) {
+            releaseConnection(false);
+            throw e;
+        }
+    }
+
+    private void writeHead() throws IOException {
+        StringBuilder head = new StringBuilder(512);
+        head.append(this.request.getType()).append(' ').append(this.request.getTarget()).append(" HTTP/1.1\r\n");
+        Set<String> connectionOptions = tokens(this.request.getHeader("connection"));
+        for (Map.Entry<String, String> header : this.request.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if (HOP_BY_HOP_HEADERS.contains(name) || connectionOptions.contains(name) || name.equals("content-length")
+                    || name.equals("x-forwarded-for")) {
+                continue;
+            }
+            head.append(name).append(": ").append(header.getValue()).append("\r\n");
+        }
+        String host = this.request.getHeader("host");
+        if (host == null) {
+            // HTTP/1.0 clients may leave it out, HTTP/1.1 requires it
+            head.append("host: ").append(this.upstream).append("\r\n");
+        } else if (this.request.getHeader("x-forwarded-host") == null) {
+            head.append("x-forwarded-host: ").append(host).append("\r\n");
+        }
+        String forwardedFor = this.request.getHeader("x-forwarded-for");
+        head.append("x-forwarded-for: ").append(forwardedFor == null ? "" : forwardedFor + ", ").append(this.clientHost).append("\r\n");
+        if (this.request.getHeader("x-forwarded-proto") == null) {
+            head.append("x-forwarded-proto: ").append(this.secure ? "https" : "http").append("\r\n");
+        }
+        if (this.chunkedBody) {
+            head.append("transfer-encoding: chunked\r\n");
+        } else if (this.request.getHeader("content-length") != null) {
+            head.append("content-length: ").append(this.request.getContentLength()).append("\r\n");
+        }
+        head.append("\r\n");
+
+        OutputStream out = this.connection.getOutputStream();
+        // Stays buffered until the body fills the buffer or ends, a request without a body is sent by finishBody()
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        this.body = this.chunkedBody ? new ChunkedOutputStream(out, CHUNK_SIZE) : out;
+    }
+
+    private void finishBody() throws IOException {
+        if (this.body instanceof ChunkedOutputStream chunked) {
+            chunked.finish();
+        } else {
+            this.body.flush();
+        }
+    }
+
+    // Interim 1xx responses are dropped, the client only gets the final one
+    private int readResponseHead(List<String> fields) throws IOException {
+        InputStream in = this.connection.getInputStream();
+        int headersSize = 0;
+        while (true) {
+            fields.clear();
+            String statusLine = readLine(in);
+            // "HTTP/1.1 200 OK"
+            if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12 || statusLine.charAt(8) != ' ') {
+                throw new IOException("Malformed status line from upstream: " + statusLine);
+            }
+            int status = parseStatus(statusLine.substring(9, 12));
+            this.chunkedResponse = false;
+            fields.add(statusLine.substring(0, 8));
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                headersSize += line.length();
+                int colon = line.indexOf(':');
+                if (colon <= 0 || line.charAt(0) == ' ' || line.charAt(0) == '\t' || headersSize > MAX_HEADERS_SIZE) {
+                    throw new IOException("Malformed response headers from upstream");
+                }
+                fields.add(line.substring(0, colon).trim());
+                fields.add(line.substring(colon + 1).trim());
+            }
+            if (status == 101) {
+                throw new IOException("Upstream switched protocols");
+            }
+            if (status >= 200) {
+                return status;
+            }
+        }
+    }
+
+    // fields holds the HTTP version, followed by the header names and values
+    private void applyResponse(HTTPResponse response, int status, List<String> fields) throws IOException {
+        boolean keepAlive = !"HTTP/1.0".equals(fields.get(0));
+        long contentLength = -1;
+        boolean untilClose = false;
+        Set<String> connectionOptions = new HashSet<>();
+        for (int i = 1; i < fields.size(); i += 2) {
+            String name = fields.get(i).toLowerCase(Locale.ROOT);
+            String value = fields.get(i + 1);
+            switch (name) {
+                case "connection" -> {
+                    connectionOptions.addAll(tokens(value));
+                    keepAlive = connectionOptions.contains("keep-alive") || (keepAlive && !connectionOptions.contains("close"));
+                }
+                case "transfer-encoding" -> {
+                    String[] codings = value.split(",");
+                    this.chunkedResponse = "chunked".equalsIgnoreCase(codings[codings.length - 1].trim());
+                    // Any other coding last means the body ends when the connection does
+                    untilClose = !this.chunkedResponse;
+                }
+                case "content-length" -> {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length from upstream: " + value);
+                    }
+                }
+            }
+        }
+        if (this.chunkedResponse || untilClose) {
+            contentLength = -1;
+        }
+
+        response.setStatus(status);
+        for (int i = 1; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String lowerCaseName = name.toLowerCase(Locale.ROOT);
+            // Date is written by the response itself, the length depends on how the body is sent to the client
+            if (HOP_BY_HOP_HEADERS.contains(lowerCaseName) || connectionOptions.contains(lowerCaseName)
+                    || lowerCaseName.equals("content-length") || lowerCaseName.equals("date")) {
+                continue;
+            }
+            String value = fields.get(i + 1);
+            String previous = response.getHeaderFields().get(name);
+            if (lowerCaseName.equals("set-cookie")) {
+                // Cookies can't be combined into one field
+                response.addHeaderValue(name, value);
+            } else {
+                response.addHeader(name, previous == null ? value : previous + ", " + value);
+            }
+        }
+
+        if (response.isHeadResponse() || status == 204 || status == 304) {
+            if (contentLength >= 0 && status != 204) {
+                response.addHeader("Content-Length", String.valueOf(contentLength));
+            }
+            releaseConnection(keepAlive);
+        } else if (contentLength >= 0) {
+            boolean reusable = keepAlive;
+            long length = contentLength;
+            response.setBody(out -> streamBody(out, length, reusable), contentLength);
+        } else {
+            boolean reusable = keepAlive && this.chunkedResponse;
+            // Chunked to the client, or close-delimited when it speaks HTTP/1.0
+            response.setBody(out -> streamBody(out, -1, reusable));
+        }
+    }
+
+    // Copies the upstream's body to the client, as much as has arrived at a time. The connection goes back to the
+    // pool only once the whole body was read.
+    private void streamBody(OutputStream out, long length, boolean reusable) throws IOException {
+        if (this.connection == null) {
+            throw new IOException("Upstream connection was already released");
+        }
+        InputStream in = this.connection.getInputStream();
+        byte[] buffer = this.bufferPool.acquire(COPY_BUFFER_SIZE);
+        boolean complete = false;
+        try {
+            if (this.chunkedResponse) {
+                copyChunks(in, out, buffer);
+            } else if (length >= 0) {
+                copy(in, out, buffer, length);
+            } else {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    flushIfWaiting(in, out);
+                }
+            }
+            complete = true;
+        } finally {
+            this.bufferPool.release(buffer);
+            releaseConnection(complete && reusable);
+        }
+    }
+
+    private void copyChunks(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        while (true) {
+            String sizeLine = readLine(in);
+            int extension = sizeLine.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((extension == -1 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size from upstream: " + sizeLine);
+            }
+            if (size <= 0) {
+                break;
+            }
+            copy(in, out, buffer, size);
+            if (!readLine(in).isEmpty()) {
+                throw new IOException("Malformed chunk from upstream");
+            }
+        }
+        // Trailers aren't passed on
+        for (int trailers = 0; !readLine(in).isEmpty(); trailers++) {
+            if (trailers == 100) {
+                throw new IOException("Too many trailers from upstream");
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, byte[] buffer, long length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read == -1) {
+                throw new EOFException("Upstream response ended early");
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+            flushIfWaiting(in, out);
+        }
+    }
+
+    // Whatever arrived goes on to the client before waiting for more, a slow upstream isn't made slower
+    private static void flushIfWaiting(InputStream in, OutputStream out) throws IOException {
+        if (in.available() == 0) {
+            out.flush();
+        }
+    }
+
+    // A line without its CRLF, a bare LF is tolerated
+    private String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Upstream closed the connection");
+            }
+            this.responseStarted = true;
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Line from upstream is too long");
+            }
+            line.append((char) b);
+        }
+        this.responseStarted = true;
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+    private static int parseStatus(String status) throws IOException {
+        try {
+            int code = Integer.parseInt(status);
+            if (code >= 100 && code < 600) {
+                return code;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IOException("Invalid status code from upstream: " + status);
+    }
+
+    private static Set<String> tokens(String header) {
+        if (header == null) {
+            return Set.of();
+        }
+        Set<String> tokens = new HashSet<>();
+        for (String token : header.split(",")) {
+            tokens.add(token.trim().toLowerCase(Locale.ROOT));
+        }
+        return tokens;
+    }
+
+    private void fail(IOException e) {
+        this.failure = e;
+        releaseConnection(false);
+    }
+
+    private void releaseConnection(boolean reusable) {
+        if (this.connection != null) {
+            this.upstream.release(this.connection, reusable);
+            this.connection = null;
+        }
+    }
+}
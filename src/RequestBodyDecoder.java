@@ -0,0 +1,155 @@
+// Decodes a request body as it arrives, either the Content-Length bytes or a chunked body, and passes the data on to a
+// BodyConsumer. Only the state of the framing is kept between calls, never the data itself.
+public class RequestBodyDecoder {
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final int MAX_TRAILERS_SIZE = 8192;
+
+    private enum State { DATA, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, COMPLETE }
+
+    private final BodyConsumer consumer;
+    private final long maxBodySize;
+    private State state;
+    // Bytes left of the body, or of the current chunk
+    private long remaining;
+    private long received;
+    private long chunkSize;
+    private boolean chunkSizeDigits;
+    private boolean chunkExtension;
+    private int lineLength;
+    private int trailersSize;
+
+    private RequestBodyDecoder(BodyConsumer consumer, long maxBodySize, State state, long remaining) {
+        this.consumer = consumer;
+        this.maxBodySize = maxBodySize;
+        this.state = state;
+        this.remaining = remaining;
+        if (state == State.DATA && remaining == 0) {
+            complete();
+        }
+    }
+
+    // A body declared up front is refused before any of it is read, so the client can stop sending it
+    public static RequestBodyDecoder forContentLength(long contentLength, long maxBodySize, BodyConsumer consumer) throws BadRequestException {
+        if (contentLength > maxBodySize) {
+            throw new BadRequestException("Request body of " + contentLength + " bytes is larger than " + maxBodySize, 413);
+        }
+        return new RequestBodyDecoder(consumer, maxBodySize, State.DATA, contentLength);
+    }
+
+    public static RequestBodyDecoder forChunked(long maxBodySize, BodyConsumer consumer) {
+        return new RequestBodyDecoder(consumer, maxBodySize, State.CHUNK_SIZE, 0);
+    }
+
+    public boolean isComplete() {
+        return this.state == State.COMPLETE;
+    }
+
+    // Number of body bytes received so far, without the chunk framing
+    public long getReceived() {
+        return this.received;
+    }
+
+    // Decodes from buffer[from, to) and returns how many bytes were used. Stops at the end of the body, whatever
+    // follows it belongs to the next pipelined request.
+    public int decode(byte[] buffer, int from, int to) throws BadRequestException {
+        int position = from;
+        while (position < to && this.state != State.COMPLETE) {
+            switch (this.state) {
+                case DATA, CHUNK_DATA -> {
+                    int length = (int) Math.min(this.remaining, to - position);
+                    this.consumer.write(buffer, position, length);
+                    this.received += length;
+                    this.remaining -= length;
+                    position += length;
+                    if (this.remaining == 0) {
+                        if (this.state == State.DATA) {
+                            complete();
+                        } else {
+                            this.state = State.CHUNK_DATA_END;
+                        }
+                    }
+                }
+                case CHUNK_SIZE -> position = decodeChunkSize(buffer, position, to);
+                case CHUNK_DATA_END -> {
+                    // The CRLF after a chunk's data, a bare LF is tolerated
+                    byte b = buffer[position++];
+                    if (b == '\n') {
+                        this.state = State.CHUNK_SIZE;
+                    } else if (b != '\r') {
+                        throw new BadRequestException("Chunk data is longer than its size");
+                    }
+                }
+                case TRAILERS -> position = decodeTrailers(buffer, position, to);
+            }
+        }
+        return position - from;
+    }
+
+    // <hex size> [; extensions] CRLF, extensions are ignored
+    private int decodeChunkSize(byte[] buffer, int position, int to) throws BadRequestException {
+        while (position < to) {
+            byte b = buffer[position++];
+            if (b == '\n') {
+                if (!this.chunkSizeDigits) {
+                    throw new BadRequestException("Invalid chunk size line");
+                }
+                if (this.chunkSize == 0) {
+                    this.state = State.TRAILERS;
+                } else {
+                    this.remaining = this.chunkSize;
+                    this.state = State.CHUNK_DATA;
+                }
+                this.chunkSize = 0;
+                this.chunkSizeDigits = false;
+                this.chunkExtension = false;
+                this.lineLength = 0;
+                return position;
+            }
+            if (++this.lineLength > MAX_LINE_LENGTH) {
+                throw new BadRequestException("Chunk size line is too long");
+            }
+            if (this.chunkExtension || b == '\r') {
+                continue;
+            }
+            int digit = Character.digit(b, 16);
+            if (digit != -1) {
+                this.chunkSize = this.chunkSize * 16 + digit;
+                this.chunkSizeDigits = true;
+                // Checked per digit, which also keeps the size from overflowing
+                if (this.chunkSize > this.maxBodySize - this.received) {
+                    throw new BadRequestException("Chunked request body is larger than " + this.maxBodySize, 413);
+                }
+            } else if (b == ';' || b == ' ' || b == '\t') {
+                this.chunkExtension = true;
+            } else {
+                throw new BadRequestException("Invalid chunk size line");
+            }
+        }
+        return position;
+    }
+
+    // Trailer fields are read and dropped, an empty line ends them and the body
+    private int decodeTrailers(byte[] buffer, int position, int to) throws BadRequestException {
+        while (position < to) {
+            byte b = buffer[position++];
+            if (++this.trailersSize > MAX_TRAILERS_SIZE) {
+                throw new BadRequestException("Request trailers are too large", 431);
+            }
+            if (b == '\n') {
+                if (this.lineLength == 0) {
+                    complete();
+                    return position;
+                }
+                this.lineLength = 0;
+            } else if (b != '\r' || this.lineLength > 0) {
+                this.lineLength++;
+            }
+        }
+        return position;
+    }
+
+    private void complete() {
+        this.state = State.COMPLETE;
+        this.consumer.finish();
+    }
+}
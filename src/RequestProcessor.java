@@ -0,0 +1,355 @@
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+public class RequestProcessor {
+    // Error pages never change, they're encoded once instead of for every error response
+    private static final byte[] BAD_REQUEST_PAGE = errorPage("400 Bad Request");
+    private static final byte[] NOT_FOUND_PAGE = errorPage("404 Not Found");
+    private static final byte[] INTERNAL_SERVER_ERROR_PAGE = errorPage("500 Internal Server Error");
+    private static final byte[] NOT_IMPLEMENTED_PAGE = errorPage("501 Not Implemented");
+    private static final byte[] CONTENT_TOO_LARGE_PAGE = errorPage("413 Content Too Large");
+    private static final byte[] HEADERS_TOO_LARGE_PAGE = errorPage("431 Request Header Fields Too Large");
+    private static final byte[] HTTP_VERSION_NOT_SUPPORTED_PAGE = errorPage("505 HTTP Version Not Supported");
+    private static final byte[] BAD_GATEWAY_PAGE = errorPage("502 Bad Gateway");
+    private static final byte[] GATEWAY_TIMEOUT_PAGE = errorPage("504 Gateway Timeout");
+    private final MultiThreadedWebServer server;
+    private volatile String keepAliveHeader;
+
+    public RequestProcessor(MultiThreadedWebServer server) {
+        this.server = server;
+        updateKeepAliveHeader();
+    }
+
+    // Called again when a reload changes the keep-alive settings
+    void updateKeepAliveHeader() {
+        this.keepAliveHeader = "timeout=" + this.server.getKeepAliveTimeout() / 1000 + ", max=" + this.server.getMaxKeepAliveRequests();
+    }
+
+    // Builds the response for a parsed request, independently of the engine that will send it
+    public HTTPResponse process(HTTPRequest request) {
+        return process(request, new HTTPResponse());
+    }
+
+    // Fills in a connection's recycled response, which has to be reset. An error may still come back in a new one.
+    public HTTPResponse process(HTTPRequest request, HTTPResponse response) {
+        try {
+            // Check if the request is a HEAD request
+            if ("HEAD".equals(request.getType())) {
+                // In order to exclude the response body
+                response.setHeadResponse(true);
+            }
+
+            // Also for an upstream's body of unknown length, which can't go back chunked to an HTTP/1.0 client
+            response.setChunkingSupported(!"HTTP/1.0".equals(request.getHttpVersion()));
+
+            // Requests under a proxy route were forwarded once their headers were read, whatever their method
+            ProxyExchange proxyExchange = request.getProxyExchange();
+            if (proxyExchange != null) {
+                return handleProxyResponse(response, request, proxyExchange);
+            }
+            response.setChunkedResponse(request.isChunkedResponse());
+
+            // Only reaches here when HTTP/2 is disabled or the engine doesn't speak it
+            if (request.isHttp2Preface()) {
+                return errorResponse(response, 505, HTTP_VERSION_NOT_SUPPORTED_PAGE);
+            }
+
+            boolean isValidType = verifyRequestType(request);
+            // 501
+            if (!isValidType) {
+                return handleNotImplementedError(response);
+            }
+
+            // Metrics are rendered from memory, the document root is never consulted
+            if (isMetricsRequest(request)) {
+                return handleMetricsRequest(response);
+            }
+
+            // Only the metadata for now, a 304 doesn't need the content
+            CachedFile file = this.server.getDocumentRoot().lookup(request.getRequestedPage());
+
+            // 404
+            if (file == null) {
+                return handleNotFoundError(response);
+            }
+            FileCache fileCache = this.server.getFileCache();
+            file = fileCache.lookup(file);
+
+            // 200
+            response.setStatus(200);
+            response.addHeader("Content-Type", file.getContentType());
+
+            // Handle TRACE request
+            if (request.getType().equals("TRACE")) {
+                return handleTraceRequest(response, request);
+            }
+
+            // Handle params_info file
+            if (request.getRequestedPage().equals("/params_info.html") && request.getType().equals("POST")) {
+                file = fileCache.load(file);
+                byte[] fileContent = file.getContent() != null ? file.getContent() : Files.readAllBytes(Paths.get(file.getPath()));
+                response.setBody(addParamsToFileContent(fileContent, request.getParameters()));
+                return response;
+            }
+
+            boolean isGetOrHead = request.getType().equals("GET") || request.getType().equals("HEAD");
+            String rangeHeader = request.getHeader("range");
+            List<ByteRange> ranges = null;
+            if (rangeHeader != null && request.getType().equals("GET") && isRangeStillValid(request, file)) {
+                ranges = ByteRange.parse(rangeHeader, file.getSize());
+            }
+            // Ranges refer to the uncompressed file, so they're always served without a content encoding
+            boolean compressible = this.server.getCompression().isCompressible(file);
+            String contentEncoding = compressible && ranges == null ? this.server.getCompression().negotiate(request.getHeader("accept-encoding")) : null;
+            String etag = file.getETag(contentEncoding);
+
+            // 304
+            if (isGetOrHead && isNotModified(request, file, etag)) {
+                return handleNotModified(file, etag, compressible);
+            }
+            response.addHeader("ETag", etag);
+            response.addHeader("Last-Modified", file.getLastModifiedHeader());
+            response.addHeader("Accept-Ranges", "bytes");
+            if (compressible) {
+                response.addHeader("Vary", "Accept-Encoding");
+            }
+
+            file = fileCache.load(file);
+            if (ranges != null) {
+                return handleRangeRequest(response, file, ranges);
+            }
+            if (contentEncoding != null) {
+                return handleCompressedResponse(response, file, contentEncoding);
+            }
+
+            // Regular GET or POST request - the content is shared with the cache and must not be modified
+            if (file.getContent() != null) {
+                response.setBody(file.getContent(), file.getContentLength());
+            } else {
+                response.setBody(file.toFileRegion(), file.getContentLength());
+            }
+            return response;
+
+        } catch (Exception e) {
+            // 500
+            return handleInternalServerError(response);
+        }
+    }
+
+    // If-None-Match takes precedence, If-Modified-Since is only looked at without it
+    private static boolean isNotModified(HTTPRequest request, CachedFile file, String etag) {
+        String ifNoneMatch = request.getHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // Weak comparison: W/"x" matches "x"
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getHeader("if-modified-since");
+        if (ifModifiedSince != null) {
+            long since = HTTPDate.parse(ifModifiedSince);
+            // Last-Modified is sent with second precision
+            return since != -1 && file.getLastModified() / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    // If-Range: the Range only applies if the client's copy is still the current one, otherwise the whole file is sent
+    private static boolean isRangeStillValid(HTTPRequest request, CachedFile file) {
+        String ifRange = request.getHeader("if-range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(file.getETag());
+        }
+        long date = HTTPDate.parse(ifRange);
+        return date != -1 && date / 1000 == file.getLastModified() / 1000;
+    }
+
+    private HTTPResponse handleNotModified(CachedFile file, String etag, boolean compressible) {
+        // A new response, the 304 has no body and so none of the body's headers
+        HTTPResponse response = new HTTPResponse();
+        response.setStatus(304);
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", file.getLastModifiedHeader());
+        if (compressible) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        return response;
+    }
+
+    // Serves, in order of preference: the cached compressed variant, a precompressed .gz next to the file,
+    // a variant compressed now for a file in the cache, or the file compressed while it's sent
+    private HTTPResponse handleCompressedResponse(HTTPResponse response, CachedFile file, String contentEncoding) throws IOException {
+        FileCache fileCache = this.server.getFileCache();
+        response.addHeader("Content-Encoding", contentEncoding);
+        byte[] variant = file.getVariant(contentEncoding);
+        if (variant == null && Compression.GZIP.equals(contentEncoding)) {
+            CachedFile precompressed = this.server.getDocumentRoot().lookupSibling(file, ".gz");
+            if (precompressed != null) {
+                precompressed = fileCache.load(fileCache.lookup(precompressed));
+                if (precompressed.getContent() != null) {
+                    response.setBody(precompressed.getContent(), precompressed.getContentLength());
+                } else {
+                    response.setBody(precompressed.toFileRegion(), precompressed.getContentLength());
+                }
+                return response;
+            }
+        }
+        if (variant == null && file.getContent() != null) {
+            variant = this.server.getCompression().compress(file.getContent(), contentEncoding);
+            fileCache.putVariant(file, contentEncoding, variant);
+        }
+        if (variant != null) {
+            response.setBody(variant);
+        } else {
+            response.setBody(this.server.getCompression().compressing(file.toFileRegion(), contentEncoding));
+        }
+        return response;
+    }
+
+    private HTTPResponse handleRangeRequest(HTTPResponse response, CachedFile file, List<ByteRange> ranges) {
+        // 416
+        if (ranges.isEmpty()) {
+            HTTPResponse notSatisfiable = new HTTPResponse();
+            notSatisfiable.setStatus(416);
+            notSatisfiable.addHeader("Content-Range", "bytes */" + file.getSize());
+            notSatisfiable.addHeader("Content-Length", "0");
+            return notSatisfiable;
+        }
+
+        // 206
+        response.setStatus(206);
+        if (ranges.size() == 1) {
+            // Sent straight from the cached content or from the range's offset in the file
+            ByteRange range = ranges.get(0);
+            response.addHeader("Content-Range", range.toContentRange(file.getSize()));
+            if (file.getContent() != null) {
+                response.setBody(file.getContent(), (int) range.getStart(), (int) range.getLength());
+            } else {
+                response.setBody(new FileRegion(Paths.get(file.getPath()), range.getStart(), range.getLength()), String.valueOf(range.getLength()));
+            }
+        } else {
+            ByteRangesBody body = new ByteRangesBody(file, ranges);
+            response.addHeader("Content-Type", body.getContentType());
+            response.setBody(body, body.getLength());
+        }
+        return response;
+    }
+
+    // The upstream's response, or 502 (504 if it didn't answer in time) when there's none
+    private HTTPResponse handleProxyResponse(HTTPResponse response, HTTPRequest request, ProxyExchange proxyExchange) {
+        try {
+            proxyExchange.readResponse(response);
+            return response;
+        } catch (IOException e) {
+            this.server.getLog().warn("Forwarding " + request.getTarget() + " to " + proxyExchange.getUpstream() + " failed: " + e.getMessage());
+            // A new response, the upstream's headers may already be on the other one
+            HTTPResponse error = new HTTPResponse();
+            error.setHeadResponse(response.isHeadResponse());
+            return e instanceof SocketTimeoutException
+                    ? errorResponse(error, 504, GATEWAY_TIMEOUT_PAGE)
+                    : errorResponse(error, 502, BAD_GATEWAY_PAGE);
+        }
+    }
+
+    public void addConnectionHeaders(HTTPResponse response, boolean keepAlive) {
+        if (keepAlive) {
+            response.addHeader("Connection", "keep-alive");
+            response.addHeader("Keep-Alive", this.keepAliveHeader);
+        } else {
+            response.addHeader("Connection", "close");
+        }
+    }
+
+    // For requests that failed to parse, statusCode comes from the BadRequestException
+    public HTTPResponse handleBadRequestError(HTTPRequest request, int statusCode) {
+        if (request.getProxyExchange() != null) {
+            // The upstream got part of the request, its connection can't be used anymore
+            request.getProxyExchange().abort();
+        }
+        HTTPResponse response = new HTTPResponse();
+        if ("HEAD".equals(request.getType())) {
+            response.setHeadResponse(true);
+        }
+        return switch (statusCode) {
+            case 413 -> errorResponse(response, 413, CONTENT_TOO_LARGE_PAGE);
+            case 431 -> errorResponse(response, 431, HEADERS_TOO_LARGE_PAGE);
+            case 501 -> errorResponse(response, 501, NOT_IMPLEMENTED_PAGE);
+            default -> errorResponse(response, 400, BAD_REQUEST_PAGE);
+        };
+    }
+
+    private HTTPResponse handleNotImplementedError(HTTPResponse response) {
+        return errorResponse(response, 501, NOT_IMPLEMENTED_PAGE);
+    }
+
+    private HTTPResponse handleNotFoundError(HTTPResponse response) {
+        return errorResponse(response, 404, NOT_FOUND_PAGE);
+    }
+
+    public HTTPResponse handleInternalServerError(HTTPResponse response) {
+        return errorResponse(response, 500, INTERNAL_SERVER_ERROR_PAGE);
+    }
+
+    private static HTTPResponse errorResponse(HTTPResponse response, int statusCode, byte[] page) {
+        response.setStatus(statusCode);
+        response.addHeader("Content-Type", ContentType.HTML.getValue());
+        response.setBody(page);
+        return response;
+    }
+
+    private static byte[] errorPage(String status) {
+        return ("<html><body><h1>" + status + "</h1></body></html>").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean isMetricsRequest(HTTPRequest request) {
+        String metricsPath = this.server.getMetricsPath();
+        return !metricsPath.isEmpty() && metricsPath.equals(request.getRequestedPage())
+                && ("GET".equals(request.getType()) || "HEAD".equals(request.getType()));
+    }
+
+    private HTTPResponse handleMetricsRequest(HTTPResponse response) {
+        response.setStatus(200);
+        response.addHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        response.addHeader("Cache-Control", "no-store");
+        response.setBody(this.server.getMetrics().toPrometheus());
+        return response;
+    }
+
+    private HTTPResponse handleTraceRequest(HTTPResponse response, HTTPRequest request) {
+        response.addHeader("Content-Type", HTTPResponse.getContentTypeByFileName("trace").getValue());
+        // The request is echoed byte for byte
+        response.setBody(request.getRawRequest().getBytes(StandardCharsets.ISO_8859_1));
+        return response;
+    }
+
+    private boolean verifyRequestType(HTTPRequest request) {
+        return (request.getType().equals("GET") || request.getType().equals("POST") ||
+                request.getType().equals("HEAD") || request.getType().equals("TRACE"));
+    }
+
+    private static byte[] addParamsToFileContent (byte[] fileContent, Map<String, String> requestParams) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(fileContent);
+        outputStream.write("</br>The parameters of your request: ".getBytes());
+        outputStream.write(requestParams.toString().getBytes());
+
+        fileContent = outputStream.toByteArray();
+        return fileContent;
+    }
+}
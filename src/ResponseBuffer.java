@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+// Per-connection buffer the status line, headers and small bodies are serialized into. It's reused for every
+// response on the connection, and handed to the socket together with the body in a single gathering write.
+public class ResponseBuffer extends OutputStream {
+    private static final int INITIAL_CAPACITY = 8192;
+    // A buffer that grew for an unusually large response isn't kept for the rest of the connection
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    // Null for a buffer that isn't pooled
+    private final BufferPool pool;
+    private byte[] bytes;
+    private int count;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    public ResponseBuffer() {
+        this(null);
+    }
+
+    public ResponseBuffer(BufferPool pool) {
+        this.pool = pool;
+        this.bytes = allocate(INITIAL_CAPACITY);
+    }
+
+    public void reset() {
+        if (this.bytes.length > MAX_RETAINED_CAPACITY) {
+            this.bytes = allocate(INITIAL_CAPACITY);
+        }
+        this.count = 0;
+    }
+
+    // Returns the array to the pool once the connection is done with the buffer, it can't be used anymore
+    public void release() {
+        if (this.pool != null && this.bytes != null) {
+            this.pool.release(this.bytes);
+        }
+        this.bytes = null;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        this.bytes[this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, this.bytes, this.count, len);
+        this.count += len;
+    }
+
+    // Header names and values are ISO-8859-1, anything outside of it is replaced instead of silently truncated
+    public void writeLatin1(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            this.bytes[this.count++] = c <= 0xff ? (byte) c : (byte) '?';
+        }
+    }
+
+    // The buffered bytes, without copying them. Only valid until the buffer is reset
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(this.bytes, 0, this.count);
+    }
+
+    public void writeTo(GatheringByteChannel channel) throws IOException {
+        writeTo(channel, null);
+    }
+
+    // Sends the buffered bytes followed by body (if any) in one system call where the socket allows it
+    public void writeTo(GatheringByteChannel channel, ByteBuffer body) throws IOException {
+        this.gather[0] = toByteBuffer();
+        this.gather[1] = body;
+        try {
+            if (body == null) {
+                while (this.gather[0].hasRemaining()) {
+                    channel.write(this.gather[0]);
+                }
+            } else {
+                while (this.gather[0].hasRemaining() || body.hasRemaining()) {
+                    channel.write(this.gather);
+                }
+            }
+        } finally {
+            this.gather[0] = null;
+            this.gather[1] = null;
+        }
+        this.count = 0;
+    }
+
+    // Stream for bodies written in pieces: small pieces are collected in the buffer (after the headers), a piece
+    // that doesn't fit goes out in one gathering write with everything collected so far
+    public OutputStream streamTo(GatheringByteChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (ResponseBuffer.this.count + len <= ResponseBuffer.this.bytes.length) {
+                    ResponseBuffer.this.write(b, off, len);
+                } else {
+                    ResponseBuffer.this.writeTo(channel, ByteBuffer.wrap(b, off, len));
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (ResponseBuffer.this.count > 0) {
+                    ResponseBuffer.this.writeTo(channel);
+                }
+            }
+        };
+    }
+
+    private void ensureCapacity(int extra) {
+        if (this.count + extra > this.bytes.length) {
+            byte[] grown = allocate(Math.max(this.bytes.length * 2, this.count + extra));
+            System.arraycopy(this.bytes, 0, grown, 0, this.count);
+            if (this.pool != null) {
+                this.pool.release(this.bytes);
+            }
+            this.bytes = grown;
+        }
+    }
+
+    private byte[] allocate(int size) {
+        return this.pool != null ? this.pool.acquire(size) : new byte[size];
+    }
+}
@@ -0,0 +1,152 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Forwards the requests under configured path prefixes to upstream HTTP/1.1 servers. Each route spreads its requests
+// over its upstreams round-robin, or sends each to the upstream with the fewest exchanges in progress. An upstream
+// that refuses the connection is skipped for the next one.
+public class ReverseProxy {
+    // Longest prefix first, so the most specific route wins
+    private final List<Route> routes = new ArrayList<>();
+    private final boolean leastConnections;
+    private final BufferPool bufferPool;
+
+    public ReverseProxy(Properties serverConfig, BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        String balancing = serverConfig.getProperty("proxyBalancing", "round-robin").trim();
+        this.leastConnections = switch (balancing) {
+            case "round-robin" -> false;
+            case "least-connections" -> true;
+            default -> throw new IllegalArgumentException("Unknown proxyBalancing " + balancing);
+        };
+        int connectTimeout = Integer.parseInt(serverConfig.getProperty("proxyConnectTimeout", "2000"));
+        // Longest wait for the upstream to answer or send more of its response
+        int readTimeout = Integer.parseInt(serverConfig.getProperty("proxyReadTimeout", "30000"));
+        int maxIdleConnections = Integer.parseInt(serverConfig.getProperty("proxyMaxIdleConnections", "16"));
+        // Pooled connections idle for longer aren't used anymore, it should be below the upstreams' keep-alive timeout
+        long idleTimeout = Long.parseLong(serverConfig.getProperty("proxyIdleTimeout", "4000"));
+
+        // "/api=localhost:9001 localhost:9002, /app=localhost:9100"
+        for (String routeConfig : serverConfig.getProperty("proxyRoutes", "").split(",")) {
+            routeConfig = routeConfig.trim();
+            if (routeConfig.isEmpty()) {
+                continue;
+            }
+            int separator = routeConfig.indexOf('=');
+            if (separator <= 0 || !routeConfig.startsWith("/")) {
+                throw new IllegalArgumentException("Invalid proxy route " + routeConfig);
+            }
+            List<Upstream> upstreams = new ArrayList<>();
+            for (String target : routeConfig.substring(separator + 1).trim().split("\\s+")) {
+                int colon = target.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Invalid upstream " + target + " in proxy route " + routeConfig);
+                }
+                int port = Integer.parseInt(target.substring(colon + 1));
+                upstreams.add(new Upstream(target.substring(0, colon), port, connectTimeout, readTimeout, maxIdleConnections, idleTimeout));
+            }
+            this.routes.add(new Route(routeConfig.substring(0, separator).trim(), upstreams));
+        }
+        this.routes.sort(Comparator.comparingInt((Route route) -> route.prefix.length()).reversed());
+    }
+
+    public boolean hasRoutes() {
+        return !this.routes.isEmpty();
+    }
+
+    // Starts forwarding the request if its path is under one of the routes, returns null otherwise. The exchange
+    // receives the request body from there on, and stays attached to the request for RequestProcessor to answer it.
+    // A body without a declared length is sent chunked. Secure tells the upstream the client came in over HTTPS.
+    public ProxyExchange forward(HTTPRequest request, String clientHost, boolean secure, boolean bodyWithoutLength) {
+        Route route = match(request.getRequestedPage());
+        if (route == null) {
+            return null;
+        }
+        ProxyExchange exchange = new ProxyExchange(request, clientHost, secure, bodyWithoutLength, this.bufferPool);
+        exchange.start(route.balance(this.leastConnections));
+        request.setProxyExchange(exchange);
+        return exchange;
+    }
+
+    public int getActiveExchanges() {
+        int active = 0;
+        for (Route route : this.routes) {
+            for (Upstream upstream : route.upstreams) {
+                active += upstream.getActiveExchanges();
+            }
+        }
+        return active;
+    }
+
+    public int getIdleConnections() {
+        int idle = 0;
+        for (Route route : this.routes) {
+            for (Upstream upstream : route.upstreams) {
+                idle += upstream.getIdleConnections();
+            }
+        }
+        return idle;
+    }
+
+    // Closes the pooled connections, the ones in use are closed as their exchanges end
+    public void close() {
+        for (Route route : this.routes) {
+            for (Upstream upstream : route.upstreams) {
+                upstream.close();
+            }
+        }
+    }
+
+    private Route match(String path) {
+        if (path == null) {
+            return null;
+        }
+        for (Route route : this.routes) {
+            if (route.matches(path)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    private static class Route {
+        private final String prefix;
+        private final List<Upstream> upstreams;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private Route(String prefix, List<Upstream> upstreams) {
+            this.prefix = prefix;
+            this.upstreams = upstreams;
+        }
+
+        // "/api" covers "/api" and "/api/users" but not "/apis", the path is forwarded as it is
+        private boolean matches(String path) {
+            return path.startsWith(this.prefix) && (path.length() == this.prefix.length() || this.prefix.endsWith("/")
+                    || path.charAt(this.prefix.length()) == '/');
+        }
+
+        // Every upstream in the order to try them: the balanced choice first, then the ones after it
+        private List<Upstream> balance(boolean leastConnections) {
+            int size = this.upstreams.size();
+            if (size == 1) {
+                return this.upstreams;
+            }
+            int first = Math.floorMod(this.next.getAndIncrement(), size);
+            if (leastConnections) {
+                // Ties are broken round-robin
+                int best = first;
+                for (int i = 1; i < size; i++) {
+                    int candidate = (first + i) % size;
+                    if (this.upstreams.get(candidate).getActiveExchanges() < this.upstreams.get(best).getActiveExchanges()) {
+                        best = candidate;
+                    }
+                }
+                first = best;
+            }
+            List<Upstream> order = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                order.add(this.upstreams.get((first + i) % size));
+            }
+            return order;
+        }
+    }
+}
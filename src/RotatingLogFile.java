@@ -0,0 +1,72 @@
+import java.io.*;
+import java.nio.file.*;
+
+// Log file that is renamed to <file>.1 (older ones shifting up to <file>.<maxBackups>) once it reaches maxSize.
+// Only written by the log writer thread.
+public class RotatingLogFile extends OutputStream {
+    private final Path path;
+    private final long maxSize;
+    private final int maxBackups;
+    private OutputStream out;
+    private long size;
+
+    public RotatingLogFile(String fileName, long maxSize, int maxBackups) throws IOException {
+        this.path = Paths.get(fileName);
+        this.maxSize = maxSize;
+        this.maxBackups = maxBackups;
+        Path parent = this.path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        open();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (this.maxSize > 0 && this.size > 0 && this.size + length > this.maxSize) {
+            rotate();
+        }
+        this.out.write(bytes, offset, length);
+        this.size += length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+
+    private void open() throws IOException {
+        this.out = Files.newOutputStream(this.path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.size = Files.size(this.path);
+    }
+
+    private void rotate() throws IOException {
+        this.out.close();
+        if (this.maxBackups > 0) {
+            for (int i = this.maxBackups - 1; i >= 1; i--) {
+                Path backup = backupPath(i);
+                if (Files.exists(backup)) {
+                    Files.move(backup, backupPath(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(this.path, backupPath(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(this.path);
+        }
+        open();
+    }
+
+    private Path backupPath(int index) {
+        return this.path.resolveSibling(this.path.getFileName() + "." + index);
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Server messages and the access log. Request threads only put entries into a lock-free ring buffer, a single
+// background thread formats them and writes them in batches, flushing once per batch instead of once per line.
+public class ServerLog {
+    private static final DateTimeFormatter MESSAGE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private volatile LogLevel level;
+    private final String accessLogFormat;
+    private final boolean blockWhenFull;
+    private final LogRingBuffer<Object> buffer;
+    private final OutputStream messageOut;
+    private final OutputStream accessOut;
+    private final LongAdder droppedEntries = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public ServerLog(Properties serverConfig) throws IOException {
+        this.level = LogLevel.fromName(serverConfig.getProperty("logLevel", "info"));
+        // common, combined, json or off
+        this.accessLogFormat = serverConfig.getProperty("accessLogFormat", "combined").trim().toLowerCase();
+        // drop loses entries (and counts them) when the writer can't keep up, block makes request threads wait
+        this.blockWhenFull = "block".equalsIgnoreCase(serverConfig.getProperty("logOverflow", "drop").trim());
+        this.buffer = new LogRingBuffer<>(Integer.parseInt(serverConfig.getProperty("logBufferSize", "8192")));
+        long maxFileSize = Long.parseLong(serverConfig.getProperty("logFileMaxSize", "10485760"));
+        int maxBackups = Integer.parseInt(serverConfig.getProperty("logFileMaxBackups", "5"));
+        // Empty file names log to the console
+        String messageFile = serverConfig.getProperty("logFile", "").trim();
+        String accessFile = serverConfig.getProperty("accessLogFile", "").trim();
+        this.messageOut = openOutput(messageFile, maxFileSize, maxBackups);
+        this.accessOut = accessFile.equals(messageFile) ? this.messageOut : openOutput(accessFile, maxFileSize, maxBackups);
+
+        this.writer = new Thread(this::writeEntries, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // The level can change on a configuration reload, the outputs can't
+    public void setLevel(LogLevel level) {
+        this.level = level;
+    }
+
+    public boolean isDebugEnabled() {
+        return this.level == LogLevel.DEBUG;
+    }
+
+    public boolean isAccessLogEnabled() {
+        return !"off".equals(this.accessLogFormat);
+    }
+
+    public void debug(String message) {
+        log(LogLevel.DEBUG, message);
+    }
+
+    public void info(String message) {
+        log(LogLevel.INFO, message);
+    }
+
+    public void warn(String message) {
+        log(LogLevel.WARN, message);
+    }
+
+    public void error(String message) {
+        log(LogLevel.ERROR, message);
+    }
+
+    public void log(LogLevel messageLevel, String message) {
+        if (messageLevel.compareTo(this.level) >= 0 && this.level != LogLevel.OFF) {
+            enqueue(new Message(System.currentTimeMillis(), messageLevel, message));
+        }
+    }
+
+    // request is null when not even the request line could be parsed
+    public void access(String remoteHost, HTTPRequest request, HTTPResponse response, long startNanos) {
+        if (isAccessLogEnabled()) {
+            enqueue(new AccessLogEntry(remoteHost, request, response, startNanos));
+        }
+    }
+
+    public long getDroppedEntries() {
+        return this.droppedEntries.sum();
+    }
+
+    // Stops the writer after it has written everything that was already logged. The server calls it once it's stopped,
+    // also when the JVM is, so the messages about the shutdown itself are written too.
+    public void close() {
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Object entry) {
+        if (this.buffer.offer(entry)) {
+            return;
+        }
+        // Full: wake the writer up instead of letting it finish its idle wait
+        LockSupport.unpark(this.writer);
+        if (!this.blockWhenFull || !this.running) {
+            this.droppedEntries.increment();
+            return;
+        }
+        while (!this.buffer.offer(entry)) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+    }
+
+    private void writeEntries() {
+        StringBuilder messages = new StringBuilder();
+        StringBuilder accessLines = new StringBuilder();
+        AccessLogEntry.TimestampCache timestamps = new AccessLogEntry.TimestampCache();
+        long reportedDrops = 0;
+
+        while (true) {
+            // Read running before draining, so nothing logged before close() is left behind
+            boolean stopping = !this.running;
+            int batchSize = 0;
+            Object entry;
+            while (batchSize < MAX_BATCH_SIZE && (entry = this.buffer.poll()) != null) {
+                if (entry instanceof AccessLogEntry accessEntry) {
+                    if ("json".equals(this.accessLogFormat)) {
+                        accessEntry.appendJson(accessLines);
+                    } else {
+                        accessEntry.appendCommon(accessLines, !"common".equals(this.accessLogFormat), timestamps);
+                    }
+                } else {
+                    ((Message) entry).appendTo(messages);
+                }
+                batchSize++;
+            }
+
+            long drops = getDroppedEntries();
+            if (drops != reportedDrops) {
+                new Message(System.currentTimeMillis(), LogLevel.WARN, "Log buffer full, dropped " + (drops - reportedDrops) + " entries").appendTo(messages);
+                reportedDrops = drops;
+            }
+
+            write(this.messageOut, messages);
+            write(this.accessOut, accessLines);
+            if (batchSize == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        closeOutput(this.messageOut);
+        if (this.accessOut != this.messageOut) {
+            closeOutput(this.accessOut);
+        }
+    }
+
+    private static void write(OutputStream out, StringBuilder lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        try {
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to write log: " + e.getMessage());
+        }
+        lines.setLength(0);
+    }
+
+    private static OutputStream openOutput(String fileName, long maxFileSize, int maxBackups) throws IOException {
+        if (fileName.isEmpty()) {
+            return System.out;
+        }
+        return new RotatingLogFile(fileName, maxFileSize, maxBackups);
+    }
+
+    private static void closeOutput(OutputStream out) {
+        if (out == System.out) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close log file: " + e.getMessage());
+        }
+    }
+
+    private static class Message {
+        private final long time;
+        private final LogLevel level;
+        private final String text;
+
+        Message(long time, LogLevel level, String text) {
+            this.time = time;
+            this.level = level;
+            this.text = text;
+        }
+
+        void appendTo(StringBuilder lines) {
+            lines.append(MESSAGE_TIME.format(Instant.ofEpochMilli(this.time))).append(' ').append(this.level).append(' ').append(this.text).append('\n');
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+// Listening and per-connection socket options, shared by both engines
+public class SocketSettings {
+    private final int acceptorThreads;
+    private final boolean reusePort;
+    private final int acceptBacklog;
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int readTimeout;
+
+    public SocketSettings(Properties serverConfig) {
+        this.acceptorThreads = Math.max(1, Integer.parseInt(serverConfig.getProperty("acceptorThreads", "1")));
+        this.reusePort = Boolean.parseBoolean(serverConfig.getProperty("reusePort", "false"));
+        this.acceptBacklog = Integer.parseInt(serverConfig.getProperty("acceptBacklog", "1024"));
+        this.tcpNoDelay = Boolean.parseBoolean(serverConfig.getProperty("tcpNoDelay", "true"));
+        // 0 keeps the OS defaults (and its auto-tuning)
+        this.sendBufferSize = Integer.parseInt(serverConfig.getProperty("sendBufferSize", "0"));
+        this.receiveBufferSize = Integer.parseInt(serverConfig.getProperty("receiveBufferSize", "0"));
+        this.readTimeout = Integer.parseInt(serverConfig.getProperty("readTimeout", "10000"));
+    }
+
+    // One listening channel per acceptor thread. With reusePort each acceptor binds its own socket and the kernel spreads
+    // new connections over them, otherwise all acceptors take turns on a single socket.
+    public List<ServerSocketChannel> bind(int port, ServerLog log) throws IOException {
+        boolean separateSockets = this.acceptorThreads > 1 && this.reusePort;
+        if (separateSockets && !isReusePortSupported()) {
+            log.warn("SO_REUSEPORT isn't supported on this platform, acceptors share one listening socket");
+            separateSockets = false;
+        }
+        if (!separateSockets) {
+            return Collections.nCopies(this.acceptorThreads, bind(port, false));
+        }
+        List<ServerSocketChannel> channels = new ArrayList<>(this.acceptorThreads);
+        try {
+            for (int i = 0; i < this.acceptorThreads; i++) {
+                channels.add(bind(port, true));
+            }
+        } catch (IOException e) {
+            close(channels);
+            throw e;
+        }
+        return channels;
+    }
+
+    public static void close(List<ServerSocketChannel> channels) {
+        for (ServerSocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Called by the thread serving the connection, so the acceptor only accepts
+    public void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, this.tcpNoDelay);
+        if (this.sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, this.sendBufferSize);
+        }
+    }
+
+    public int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    private ServerSocketChannel bind(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (this.receiveBufferSize > 0) {
+                // Accepted sockets inherit it, and only a size set before the handshake can use a window above 64KB
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, this.receiveBufferSize);
+            }
+            channel.bind(new InetSocketAddress(port), this.acceptBacklog);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean isReusePortSupported() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+}
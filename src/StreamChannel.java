@@ -0,0 +1,78 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+// Lets the code written for socket channels send over a stream, the TLS socket's. The buffers of one write are
+// collected and flushed together, so the headers and a body written with them share a TLS record. A file body can't
+// be sent with sendfile this way, it's copied through here.
+public class StreamChannel implements GatheringByteChannel {
+    // The largest TLS record, a write of at least that much goes straight to the stream
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private final OutputStream out;
+    private byte[] copyBuffer;
+    private boolean open = true;
+
+    public StreamChannel(OutputStream out) {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = append(src);
+        this.out.flush();
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i] != null) {
+                written += append(srcs[i]);
+            }
+        }
+        this.out.flush();
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    // The stream belongs to the socket, closing the socket closes it
+    @Override
+    public void close() {
+        this.open = false;
+    }
+
+    private int append(ByteBuffer src) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        int length = src.remaining();
+        if (src.hasArray()) {
+            this.out.write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+            return length;
+        }
+        // Direct buffers, like the ones a file is copied through
+        if (this.copyBuffer == null) {
+            this.copyBuffer = new byte[BUFFER_SIZE];
+        }
+        while (src.hasRemaining()) {
+            int chunk = Math.min(src.remaining(), this.copyBuffer.length);
+            src.get(this.copyBuffer, 0, chunk);
+            this.out.write(this.copyBuffer, 0, chunk);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,110 @@
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+// HTTPS on a port of its own, next to the cleartext one. The accepted socket is wrapped in an SSLSocket by the thread
+// that serves the connection, so the handshake never holds up the acceptor. Resumed sessions skip the certificate
+// exchange and key agreement: TLS 1.3 resumes from stateless session tickets, TLS 1.2 from the session cache.
+public class TlsSettings {
+    private final int port;
+    private final SSLContext sslContext;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final String[] applicationProtocols;
+
+    public TlsSettings(Properties serverConfig, boolean http2Enabled) throws IOException {
+        // 0 disables HTTPS
+        this.port = Integer.parseInt(serverConfig.getProperty("tlsPort", "0"));
+        this.protocols = list(serverConfig.getProperty("tlsProtocols", "TLSv1.3,TLSv1.2"));
+        // Empty keeps the JDK's default suites for the enabled protocols
+        this.cipherSuites = list(serverConfig.getProperty("tlsCipherSuites", ""));
+        // HTTP/2 over TLS is chosen with ALPN, the client then starts right away with the preface
+        this.applicationProtocols = http2Enabled ? new String[]{"h2", "http/1.1"} : new String[]{"http/1.1"};
+        if (this.port <= 0) {
+            this.sslContext = null;
+            return;
+        }
+        // JVM-wide and read once, when the first TLS connection is set up
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", serverConfig.getProperty("tlsSessionTickets", "true").trim());
+
+        String keyStorePath = serverConfig.getProperty("tlsKeyStore", "").trim();
+        if (keyStorePath.isEmpty()) {
+            throw new IllegalArgumentException("tlsPort is set without a tlsKeyStore");
+        }
+        // "~/" stands for the user's home directory, like in root
+        if (keyStorePath.startsWith("~")) {
+            keyStorePath = System.getProperty("user.home") + keyStorePath.substring(1);
+        }
+        char[] password = serverConfig.getProperty("tlsKeyStorePassword", "").toCharArray();
+        try (InputStream in = Files.newInputStream(Path.of(keyStorePath))) {
+            KeyStore keyStore = KeyStore.getInstance(serverConfig.getProperty("tlsKeyStoreType", "PKCS12").trim());
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            this.sslContext = SSLContext.getInstance("TLS");
+            this.sslContext.init(keyManagers.getKeyManagers(), null, null);
+        } catch (GeneralSecurityException | IOException e) {
+            // A wrong password surfaces as an IOException from load()
+            throw new IOException("Failed to load the TLS key store " + keyStorePath + ": " + e.getMessage(), e);
+        }
+        SSLSessionContext sessions = this.sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(Integer.parseInt(serverConfig.getProperty("tlsSessionCacheSize", "20480")));
+        // Seconds a session can be resumed for, it also bounds the lifetime of the tickets
+        sessions.setSessionTimeout(Integer.parseInt(serverConfig.getProperty("tlsSessionTimeout", "86400")));
+        // Fails here rather than on the first connection when a protocol or suite isn't supported
+        SSLParameters supported = this.sslContext.getSupportedSSLParameters();
+        checkSupported("tlsProtocols", this.protocols, supported.getProtocols());
+        checkSupported("tlsCipherSuites", this.cipherSuites, supported.getCipherSuites());
+    }
+
+    public boolean isEnabled() {
+        return this.sslContext != null;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    // Layers TLS over an accepted socket, closing it closes the socket too. The handshake is left to the caller.
+    public SSLSocket wrap(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) this.sslContext.getSocketFactory()
+                .createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        parameters.setProtocols(this.protocols);
+        if (this.cipherSuites.length > 0) {
+            parameters.setCipherSuites(this.cipherSuites);
+        }
+        parameters.setUseCipherSuitesOrder(true);
+        parameters.setApplicationProtocols(this.applicationProtocols);
+        sslSocket.setSSLParameters(parameters);
+        return sslSocket;
+    }
+
+    private static String[] list(String value) {
+        List<String> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.isBlank()) {
+                values.add(item.trim());
+            }
+        }
+        return values.toArray(new String[0]);
+    }
+
+    private static void checkSupported(String setting, String[] configured, String[] supported) {
+        List<String> supportedList = List.of(supported);
+        for (String value : configured) {
+            if (!supportedList.contains(value)) {
+                throw new IllegalArgumentException("Unsupported " + value + " in " + setting);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One upstream server of a proxy route with its pool of idle keep-alive connections. The most recently used
+// connection is handed out first, so the ones that sat idle the longest are the first to time out.
+public class Upstream {
+    private final String host;
+    private final int port;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxIdleConnections;
+    private final long idleTimeout;
+    private final Deque<UpstreamConnection> idleConnections = new ArrayDeque<>();
+    // Exchanges using a connection to it right now, for least-connections balancing
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+    private boolean closed;
+
+    Upstream(String host, int port, int connectTimeout, int readTimeout, int maxIdleConnections, long idleTimeout) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxIdleConnections = maxIdleConnections;
+        this.idleTimeout = idleTimeout;
+    }
+
+    // A pooled connection if one is still fresh, otherwise a new one. A new one is also used to send a request again
+    // after the upstream had closed the pooled connection. Every connection acquired is released again.
+    UpstreamConnection acquire(boolean pooled) throws IOException {
+        UpstreamConnection connection = pooled ? pollIdle() : null;
+        if (connection == null) {
+            connection = new UpstreamConnection(new InetSocketAddress(this.host, this.port), this.connectTimeout, this.readTimeout);
+        }
+        this.activeExchanges.incrementAndGet();
+        return connection;
+    }
+
+    // A connection that's in the middle of a message or was closed by the upstream isn't reusable
+    void release(UpstreamConnection connection, boolean reusable) {
+        this.activeExchanges.decrementAndGet();
+        if (reusable) {
+            connection.markIdle();
+            synchronized (this.idleConnections) {
+                if (!this.closed && this.idleConnections.size() < this.maxIdleConnections) {
+                    this.idleConnections.push(connection);
+                    return;
+                }
+            }
+        }
+        connection.close();
+    }
+
+    int getActiveExchanges() {
+        return this.activeExchanges.get();
+    }
+
+    int getIdleConnections() {
+        synchronized (this.idleConnections) {
+            return this.idleConnections.size();
+        }
+    }
+
+    // Closes the idle connections, the ones in use are closed when their exchange releases them
+    void close() {
+        synchronized (this.idleConnections) {
+            this.closed = true;
+            for (UpstreamConnection connection : this.idleConnections) {
+                connection.close();
+            }
+            this.idleConnections.clear();
+        }
+    }
+
+    private UpstreamConnection pollIdle() {
+        long now = System.currentTimeMillis();
+        synchronized (this.idleConnections) {
+            UpstreamConnection connection = this.idleConnections.poll();
+            if (connection != null && now - connection.getIdleSince() > this.idleTimeout) {
+                // The rest has been idle even longer
+                connection.close();
+                for (UpstreamConnection stale : this.idleConnections) {
+                    stale.close();
+                }
+                this.idleConnections.clear();
+                return null;
+            }
+            return connection;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.host + ":" + this.port;
+    }
+}
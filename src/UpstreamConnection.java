@@ -0,0 +1,60 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+// A keep-alive connection to an upstream server. It serves one exchange at a time and waits in its Upstream's pool in
+// between.
+public class UpstreamConnection implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private boolean reused;
+    private long idleSince;
+
+    UpstreamConnection(InetSocketAddress address, int connectTimeout, int readTimeout) throws IOException {
+        this.socket = new Socket();
+        try {
+            this.socket.connect(address, connectTimeout);
+            // Bounds every read, so an upstream that stops answering can't hold the client's request forever
+            this.socket.setSoTimeout(readTimeout);
+            this.socket.setTcpNoDelay(true);
+            this.in = new BufferedInputStream(this.socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(this.socket.getOutputStream(), BUFFER_SIZE);
+        } catch (IOException e) {
+            this.socket.close();
+            throw e;
+        }
+    }
+
+    public InputStream getInputStream() {
+        return this.in;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    // Whether an earlier exchange used it, in which case the upstream may have closed it while it was idle
+    public boolean isReused() {
+        return this.reused;
+    }
+
+    long getIdleSince() {
+        return this.idleSince;
+    }
+
+    void markIdle() {
+        this.reused = true;
+        this.idleSince = System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}